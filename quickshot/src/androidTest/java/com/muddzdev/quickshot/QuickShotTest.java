@@ -41,7 +41,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
             }
         }).save();
         sleepThread();
@@ -57,7 +57,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
             }
         }).save();
         sleepThread();
@@ -72,7 +72,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
             }
         }).save();
 
@@ -88,7 +88,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
             }
         }).save();
         sleepThread();
@@ -107,7 +107,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
 
             }
         }).save();
@@ -126,7 +126,7 @@ public class QuickShotTest {
             }
 
             @Override
-            public void onQuickShotFailed() {
+            public void onQuickShotFailed(String path) {
 
             }
         }).save();
@@ -0,0 +1,37 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+/**
+ * Who a captured bitmap belongs to, which decides how the save pipeline releases it when done.
+ */
+enum BitmapOwnership {
+    /**
+     * The bitmap was allocated for the capture or handed over by the caller and is recycled
+     */
+    OWNED {
+        @Override
+        void release(Bitmap bitmap) {
+            bitmap.recycle();
+        }
+    },
+    /**
+     * The bitmap belongs to the caller and is only read, never copied or recycled
+     */
+    BORROWED {
+        @Override
+        void release(Bitmap bitmap) {
+        }
+    },
+    /**
+     * The bitmap is put into the {@link BitmapPool} for reuse
+     */
+    POOLED {
+        @Override
+        void release(Bitmap bitmap) {
+            BitmapPool.release(bitmap);
+        }
+    };
+
+    abstract void release(Bitmap bitmap);
+}
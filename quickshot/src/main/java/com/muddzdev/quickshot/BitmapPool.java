@@ -0,0 +1,90 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps released ARGB_8888 bitmaps for reuse so repeated captures don't allocate a new bitmap every time.
+ * <p>A pooled bitmap is reused for any size which fits in its allocation. The least recently released bitmaps
+ * are recycled when the pool grows beyond its maximum size.</p>
+ * <p>Bitmaps acquired here can be saved with {@link QuickShot#returnBitmapToPool()}, which puts them back once saved.</p>
+ */
+public final class BitmapPool {
+
+    private static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final LinkedList<Bitmap> pool = new LinkedList<>();
+    private static long maxSize = DEFAULT_MAX_SIZE;
+    private static long pooledBytes;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Sets the memory the pool may hold and recycles the least recently released bitmaps beyond it. Default is 16 MB
+     */
+    public static synchronized void setMaxSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Max size can't be negative");
+        }
+        maxSize = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    /**
+     * @return a pooled bitmap reconfigured to the given size, or a new one if none fits. Its pixels are undefined
+     */
+    @NonNull
+    public static synchronized Bitmap acquire(int width, int height) {
+        long byteCount = (long) width * height * 4;
+        Iterator<Bitmap> iterator = pool.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= byteCount) {
+                iterator.remove();
+                pooledBytes -= bitmap.getAllocationByteCount();
+                if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                }
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Puts the bitmap back into the pool, or recycles it if it can't be reused
+     */
+    public static synchronized void release(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        long byteCount = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || byteCount > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        while (pooledBytes + byteCount > maxSize) {
+            Bitmap eldest = pool.removeFirst();
+            pooledBytes -= eldest.getAllocationByteCount();
+            eldest.recycle();
+        }
+        pool.addLast(bitmap);
+        pooledBytes += byteCount;
+    }
+
+    /**
+     * Recycles the least recently released bitmaps until the pool holds at most the given bytes
+     */
+    static synchronized void trimTo(long bytes) {
+        while (pooledBytes > bytes && !pool.isEmpty()) {
+            Bitmap eldest = pool.removeFirst();
+            pooledBytes -= eldest.getAllocationByteCount();
+            eldest.recycle();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.muddzdev.quickshot;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import static android.os.Environment.DIRECTORY_PICTURES;
+
+/**
+ * Writes every {@link Output} of a {@link SaveRequest}. Scaled outputs are downsampled progressively, each from the
+ * next larger one. For interactive captures all outputs besides the main one are encoded in parallel on the AsyncTask
+ * thread pool, background captures encode them one after another on their own low priority saver thread.
+ * <p>Full size outputs in other formats share the captured bitmap read-only. Neither the capture nor any variant
+ * is recycled before the last encoder finished.</p>
+ * <p>Savers are run by the {@link SaveScheduler}, listeners are called on the main thread.</p>
+ */
+class BitmapSaver implements Runnable {
+
+    private static final String TAG = BitmapSaver.class.getSimpleName();
+
+    private final WeakReference<Context> weakContext;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final SaveRequest request;
+    private final long byteCount;
+    private final List<SavedImage> savedImages = new ArrayList<>();
+    private boolean success = true;
+    private Bitmap bitmap;
+    private byte[] encodedMain;
+
+    BitmapSaver(Context context, Bitmap bitmap, SaveRequest request) {
+        this.weakContext = new WeakReference<>(context);
+        this.bitmap = bitmap;
+        this.request = request;
+        this.byteCount = bitmap.getByteCount();
+    }
+
+    long getByteCount() {
+        return byteCount;
+    }
+
+    SaveScheduler.Priority getPriority() {
+        return request.priority;
+    }
+
+    /**
+     * @return identifies the file this saver writes to
+     */
+    String getKey() {
+        return request.path + File.separator + request.filename;
+    }
+
+    /**
+     * Releases the capture without saving it and reports the failure
+     */
+    void fail() {
+        request.releaseBitmap(bitmap);
+        bitmap = null;
+        success = false;
+        postResult();
+    }
+
+    @Override
+    public void run() {
+        save();
+        postResult();
+    }
+
+    private void postResult() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverResult();
+            }
+        });
+    }
+
+    private void save() {
+        List<Output> outputs = request.outputs;
+        Bitmap[] variants = new Bitmap[outputs.size()];
+        List<FutureTask<SavedImage>> tasks = new ArrayList<>();
+        try {
+            request.process(bitmap);
+            createVariants(variants);
+            for (int i = 1; i < outputs.size(); i++) {
+                FutureTask<SavedImage> task = new FutureTask<>(new OutputWriter(variants[i], outputs.get(i)));
+                if (request.priority == SaveScheduler.Priority.BACKGROUND) {
+                    task.run();
+                } else {
+                    try {
+                        AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        task.run();
+                    }
+                }
+                tasks.add(task);
+            }
+            savedImages.add(writeOutput(variants[0], outputs.get(0)));
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        } finally {
+            for (FutureTask<SavedImage> task : tasks) {
+                try {
+                    savedImages.add(task.get());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            }
+            if (success && request.cacheKey != null) {
+                cacheMainOutput(variants[0]);
+            }
+            for (Bitmap variant : variants) {
+                if (variant != null && variant != bitmap) {
+                    variant.recycle();
+                }
+            }
+            request.releaseBitmap(bitmap);
+            bitmap = null;
+        }
+    }
+
+    private void deliverResult() {
+        if (success && !QuickShotUtils.isAboveAPI29()) {
+            String[] paths = new String[savedImages.size()];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = savedImages.get(i).getPath();
+            }
+            MediaScannerConnection.scanFile(weakContext.get(), paths, null, null);
+        }
+
+        String mainPath = getFile(request.outputs.get(0)).getAbsolutePath();
+        if (request.listener != null) {
+            if (success) {
+                request.listener.onQuickShotSuccess(mainPath);
+            } else {
+                request.listener.onQuickShotFailed(mainPath);
+            }
+        }
+        if (success && request.outputsListener != null) {
+            request.outputsListener.onQuickShotOutputsSaved(Collections.unmodifiableList(savedImages));
+        }
+    }
+
+    /**
+     * Fills the variants in the order of the outputs, going from the largest to the smallest size so every
+     * scaled variant is downsampled from the previous level instead of from the full size capture.
+     */
+    private void createVariants(Bitmap[] variants) {
+        final List<Output> outputs = request.outputs;
+        Integer[] order = new Integer[outputs.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int[] sizeA = outputs.get(a).getSize(width, height);
+                int[] sizeB = outputs.get(b).getSize(width, height);
+                return Long.compare((long) sizeB[0] * sizeB[1], (long) sizeA[0] * sizeA[1]);
+            }
+        });
+
+        Bitmap previous = bitmap;
+        for (int index : order) {
+            int[] size = outputs.get(index).getSize(width, height);
+            variants[index] = QuickShotUtils.downsample(previous, size[0], size[1]);
+            previous = variants[index];
+        }
+    }
+
+    private boolean useScopedStorage() {
+        return QuickShotUtils.isAboveAPI29() && !request.saveInternal;
+    }
+
+    private String getDirectory() {
+        if (useScopedStorage()) {
+            return request.path != null ? (DIRECTORY_PICTURES + File.separator + request.path) : DIRECTORY_PICTURES;
+        }
+        return request.path != null ? request.path : Environment.getExternalStorageDirectory() + File.separator + DIRECTORY_PICTURES;
+    }
+
+    private File getFile(Output output) {
+        return new File(getDirectory(), output.getDisplayName(request.filename) + output.fileExtension);
+    }
+
+    private SavedImage writeOutput(Bitmap variant, Output output) throws IOException {
+        return useScopedStorage() ? writeScoopedStorage(variant, output) : writeFile(variant, output);
+    }
+
+    private SavedImage writeFile(Bitmap variant, Output output) throws IOException {
+        File file = getFile(output);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new ThrottledOutputStream(new FileOutputStream(file), getWriteThrottle())) {
+            encode(variant, output, out);
+        }
+        return new SavedImage(file.getName(), file.getAbsolutePath(), Uri.fromFile(file), variant.getWidth(), variant.getHeight());
+    }
+
+    private SavedImage writeScoopedStorage(Bitmap variant, Output output) throws IOException {
+        String directory = getDirectory();
+        String displayName = output.getDisplayName(request.filename);
+        File file = getFile(output); //only used for success/fail listeners
+        ContentResolver resolver = weakContext.get().getContentResolver();
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, displayName);
+        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, QuickShotUtils.getMimeType(output.fileExtension));
+        contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, directory);
+        Uri imageUri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
+        if (imageUri == null) {
+            String msg = String.format("ContentResolver couldn't create URI for filename: %s and path: %s", displayName, directory);
+            Log.e(TAG, msg);
+            throw new IOException(msg);
+        }
+
+        try (OutputStream out = new ThrottledOutputStream(resolver.openOutputStream(imageUri), getWriteThrottle())) {
+            encode(variant, output, out);
+        } catch (IOException | RuntimeException e) {
+            resolver.delete(imageUri, null, null);
+            throw e;
+        }
+        return new SavedImage(file.getName(), file.getAbsolutePath(), imageUri, variant.getWidth(), variant.getHeight());
+    }
+
+    private WriteThrottle getWriteThrottle() {
+        return SaveScheduler.getWriteThrottle(request.priority);
+    }
+
+    /**
+     * Encodes the main output to memory first if it should be cached, all other outputs are encoded straight to the stream
+     */
+    private void encode(Bitmap variant, Output output, OutputStream out) throws IOException {
+        if (request.cacheKey == null || output != request.outputs.get(0)) {
+            Encoder.encode(variant, output, out);
+            return;
+        }
+        EncodeBuffer buffer = new EncodeBuffer(64 * 1024);
+        Encoder.encode(variant, output, buffer);
+        buffer.writeTo(out);
+        encodedMain = buffer.toByteArray();
+    }
+
+    private void cacheMainOutput(Bitmap mainVariant) {
+        Context context = weakContext.get();
+        if (context == null || encodedMain == null) {
+            return;
+        }
+        String mimeType = QuickShotUtils.getMimeType(request.outputs.get(0).fileExtension);
+        Bitmap preview = CaptureCache.createPreview(mainVariant);
+        CaptureCache.put(context, request.cacheKey, new CaptureCache.Entry(encodedMain, mimeType, preview, savedImages.get(0)));
+    }
+
+    private class OutputWriter implements Callable<SavedImage> {
+        private final Bitmap variant;
+        private final Output output;
+
+        OutputWriter(Bitmap variant, Output output) {
+            this.variant = variant;
+            this.output = output;
+        }
+
+        @Override
+        public SavedImage call() throws IOException {
+            return writeOutput(variant, output);
+        }
+    }
+}
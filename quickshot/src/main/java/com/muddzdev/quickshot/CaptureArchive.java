@@ -0,0 +1,265 @@
+package com.muddzdev.quickshot;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static android.os.Environment.DIRECTORY_DOWNLOADS;
+
+/**
+ * Packs many captures into one ZIP file instead of writing a file for each, see {@link QuickShot#appendTo(CaptureArchive)}.
+ * <p>Every output of a capture becomes a STORED entry, since the images are compressed already. The archive is
+ * written through a single file handle and registered with the media store once, when it's closed.</p>
+ */
+public class CaptureArchive implements Closeable {
+
+    static final String EXTENSION_ZIP = ".zip";
+    private static final String MIME_TYPE_ZIP = "application/zip";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new QuickShotThreadFactory("QuickShot-Archive", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Context context;
+    private final String path;
+    private final Uri uri;
+    private final ThrottledOutputStream throttledOut;
+    private final ZipOutputStream zip;
+    private final EncodeBuffer buffer = new EncodeBuffer(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private final Set<String> entryNames = new HashSet<>();
+    private final PendingCaptures pendingCaptures = new PendingCaptures("CaptureArchive", executor, new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+            finish();
+            return null;
+        }
+    });
+    private int entryCount;
+    private boolean closed;
+
+    /**
+     * Creates an archive in a private file, which isn't registered with the media store
+     */
+    public CaptureArchive(@NonNull File file) throws IOException {
+        this(null, file.getAbsolutePath(), null, new FileOutputStream(file));
+    }
+
+    private CaptureArchive(Context context, String path, Uri uri, OutputStream out) {
+        this.context = context;
+        this.path = path;
+        this.uri = uri;
+        this.throttledOut = new ThrottledOutputStream(out, SaveScheduler.getWriteThrottle(SaveScheduler.Priority.INTERACTIVE));
+        this.zip = new ZipOutputStream(throttledOut);
+    }
+
+    /**
+     * Creates an archive in the public Downloads directory. For devices running Android Q (+API 29) it's added to the
+     * MediaStore right away and becomes visible once closed, below it's scanned once closed.
+     *
+     * @param path     like {@link QuickShot#setPath(String)}, relative to Downloads on Android Q, or null for Downloads
+     * @param filename without the .zip extension
+     */
+    @NonNull
+    public static CaptureArchive create(@NonNull Context context, @Nullable String path, @NonNull String filename) throws IOException {
+        Context appContext = context.getApplicationContext();
+        String displayName = filename + EXTENSION_ZIP;
+        if (QuickShotUtils.isAboveAPI29()) {
+            String directory = path != null ? (DIRECTORY_DOWNLOADS + File.separator + path) : DIRECTORY_DOWNLOADS;
+            ContentResolver resolver = appContext.getContentResolver();
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, displayName);
+            contentValues.put(MediaStore.MediaColumns.MIME_TYPE, MIME_TYPE_ZIP);
+            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, directory);
+            contentValues.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            Uri archiveUri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, contentValues);
+            if (archiveUri == null) {
+                throw new IOException(String.format("ContentResolver couldn't create URI for filename: %s and path: %s", displayName, directory));
+            }
+            OutputStream out = resolver.openOutputStream(archiveUri);
+            if (out == null) {
+                resolver.delete(archiveUri, null, null);
+                throw new IOException("Couldn't open " + archiveUri);
+            }
+            return new CaptureArchive(appContext, directory + File.separator + displayName, archiveUri, out);
+        }
+
+        String directory = path != null ? path : Environment.getExternalStorageDirectory() + File.separator + DIRECTORY_DOWNLOADS;
+        File file = new File(directory, displayName);
+        file.getParentFile().mkdirs();
+        return new CaptureArchive(appContext, file.getAbsolutePath(), null, new FileOutputStream(file));
+    }
+
+    /**
+     * @return the path of the archive, which the result listeners are called with
+     */
+    @NonNull
+    public String getPath() {
+        return path;
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Called before a capture is made for {@link #addAsync(Bitmap, SaveRequest, boolean)}, so {@link #close()} waits for it
+     *
+     * @param needsMainThread see {@link PendingCaptures#begin(boolean)}
+     */
+    void beginAdd(boolean needsMainThread) {
+        pendingCaptures.begin(needsMainThread);
+    }
+
+    /**
+     * Called instead of {@link #addAsync(Bitmap, SaveRequest, boolean)} if the capture couldn't be made
+     */
+    void cancelAdd(boolean needsMainThread) {
+        pendingCaptures.end(needsMainThread);
+    }
+
+    /**
+     * Adds the outputs on a background thread and releases the capture afterwards, used by {@link QuickShot#appendTo(CaptureArchive)}.
+     */
+    void addAsync(final Bitmap capture, final SaveRequest request, final boolean needsMainThread) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    request.process(capture);
+                    add(capture, request);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    success = false;
+                } finally {
+                    request.releaseBitmap(capture);
+                    pendingCaptures.end(needsMainThread);
+                }
+                final boolean added = success;
+                if (request.listener != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (added) {
+                                request.listener.onQuickShotSuccess(path);
+                            } else {
+                                request.listener.onQuickShotFailed(path);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Finishes the archive once all captures added or being made before were written, and registers it. Blocks until
+     * then.
+     *
+     * @throws IllegalStateException on the main thread while a {@link Composition} with SurfaceViews is being added,
+     *                               since it's finished on the main thread. Nothing is closed then, close again after
+     *                               its listener was called or from a background thread
+     */
+    @Override
+    public void close() throws IOException {
+        pendingCaptures.close();
+    }
+
+    private synchronized void add(Bitmap capture, SaveRequest request) throws IOException {
+        if (closed) {
+            throw new IOException("CaptureArchive is closed");
+        }
+        throttledOut.setThrottle(SaveScheduler.getWriteThrottle(request.priority));
+        for (Output output : request.outputs) {
+            int[] size = output.getSize(capture.getWidth(), capture.getHeight());
+            Bitmap variant = QuickShotUtils.downsample(capture, size[0], size[1]);
+            try {
+                addEntry(getUniqueName(output.getDisplayName(request.filename), output.fileExtension), variant, output);
+            } finally {
+                if (variant != capture) {
+                    variant.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the name with a _n suffix if an entry has it already, e.g. for the default timestamp filenames of a batch
+     */
+    private String getUniqueName(String displayName, String fileExtension) {
+        String name = displayName + fileExtension;
+        for (int n = 1; !entryNames.add(name); n++) {
+            name = displayName + "_" + n + fileExtension;
+        }
+        return name;
+    }
+
+    /**
+     * Encodes to memory first, a STORED entry needs its size and checksum before its data
+     */
+    private void addEntry(String name, Bitmap variant, Output output) throws IOException {
+        buffer.reset();
+        Encoder.encode(variant, output, buffer);
+        crc.reset();
+        buffer.updateChecksum(crc);
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(buffer.size());
+        entry.setCompressedSize(buffer.size());
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        buffer.writeTo(zip);
+        zip.closeEntry();
+        entryCount++;
+    }
+
+    private synchronized void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            zip.close();
+        } catch (IOException e) {
+            if (uri != null) {
+                context.getContentResolver().delete(uri, null, null);
+            }
+            throw e;
+        }
+
+        if (uri != null) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            context.getContentResolver().update(uri, contentValues, null, null);
+        } else if (context != null) {
+            MediaScannerConnection.scanFile(context, new String[]{path}, new String[]{MIME_TYPE_ZIP}, null);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.muddzdev.quickshot;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the most recent captures saved with {@link QuickShot#setCacheKey(String)} in memory, so a preview or
+ * re-share right after onQuickShotSuccess() doesn't need to decode the file which was just written.
+ * <p>Each entry holds the encoded main image and a downscaled preview bitmap. The least recently used entries are
+ * evicted when the cache grows beyond its budget, and the cache is trimmed when the system is low on memory.</p>
+ */
+public final class CaptureCache {
+
+    private static final long DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_PREVIEW_SIZE = 512;
+
+    private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            CaptureCache.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            CaptureCache.onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+    };
+
+    private static LruCache<String, Entry> cache = createCache(DEFAULT_MAX_SIZE);
+    private static int previewWidth = DEFAULT_PREVIEW_SIZE;
+    private static int previewHeight = DEFAULT_PREVIEW_SIZE;
+    private static boolean registered;
+
+    private CaptureCache() {
+    }
+
+    /**
+     * Sets the memory budget of all cached entries and clears the cache. Default is 8 MB
+     */
+    public static synchronized void setMaxSize(long maxBytes) {
+        if (maxBytes <= 0 || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Max size must be between 1 and " + Integer.MAX_VALUE + " bytes");
+        }
+        cache.evictAll();
+        cache = createCache(maxBytes);
+    }
+
+    /**
+     * @param maxWidth  of the cached preview bitmap, or 0 to only cache the encoded image
+     * @param maxHeight of the cached preview bitmap, or 0 to only cache the encoded image. Default is 512x512
+     */
+    public static synchronized void setPreviewSize(int maxWidth, int maxHeight) {
+        previewWidth = maxWidth;
+        previewHeight = maxHeight;
+    }
+
+    @Nullable
+    public static synchronized Entry get(@NonNull String key) {
+        return cache.get(key);
+    }
+
+    public static synchronized void remove(@NonNull String key) {
+        cache.remove(key);
+    }
+
+    public static synchronized void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Trims the cache for the given {@link ComponentCallbacks2} level. Called automatically once the first capture was cached.
+     */
+    public static synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+            BitmapPool.trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * @return a downscaled copy of the capture, or null if previews are disabled
+     */
+    @Nullable
+    static Bitmap createPreview(@NonNull Bitmap capture) {
+        int maxWidth;
+        int maxHeight;
+        synchronized (CaptureCache.class) {
+            maxWidth = previewWidth;
+            maxHeight = previewHeight;
+        }
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return null;
+        }
+        int[] size = QuickShotUtils.fitSize(capture.getWidth(), capture.getHeight(), maxWidth, maxHeight);
+        Bitmap preview = QuickShotUtils.downsample(capture, size[0], size[1]);
+        return preview != capture ? preview : capture.copy(Bitmap.Config.ARGB_8888, false);
+    }
+
+    static synchronized void put(@NonNull Context context, @NonNull String key, @NonNull Entry entry) {
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(trimCallbacks);
+            registered = true;
+        }
+        cache.put(key, entry);
+    }
+
+    private static LruCache<String, Entry> createCache(long maxBytes) {
+        return new LruCache<String, Entry>((int) maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * A cached capture. The preview bitmap is shared and must not be recycled or modified.
+     */
+    public static class Entry {
+
+        private final byte[] encoded;
+        private final String mimeType;
+        private final Bitmap preview;
+        private final SavedImage savedImage;
+
+        Entry(byte[] encoded, String mimeType, Bitmap preview, SavedImage savedImage) {
+            this.encoded = encoded;
+            this.mimeType = mimeType;
+            this.preview = preview;
+            this.savedImage = savedImage;
+        }
+
+        /**
+         * @return the encoded main image, exactly as it was written
+         */
+        @NonNull
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * @return e.g. image/jpeg
+         */
+        @NonNull
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return a downscaled copy of the capture, or null if previews are disabled
+         */
+        @Nullable
+        public Bitmap getPreview() {
+            return preview;
+        }
+
+        /**
+         * @return where the main image was saved
+         */
+        @NonNull
+        public SavedImage getSavedImage() {
+            return savedImage;
+        }
+
+        int getByteCount() {
+            return encoded.length + (preview != null ? preview.getByteCount() : 0);
+        }
+    }
+}
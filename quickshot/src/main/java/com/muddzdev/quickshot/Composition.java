@@ -0,0 +1,224 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.SurfaceView;
+import android.view.View;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lays out several Views, including SurfaceViews, into one image which can be saved with {@link QuickShot#of(Composition)}.
+ * <p>Views are drawn in the order they were added, so later views are drawn on top of earlier ones.
+ * All views are drawn in a single pass directly into the destination bitmap.</p>
+ */
+public class Composition {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Layer> layers = new ArrayList<>();
+    private final int width;
+    private final int height;
+    private int backgroundColor = Color.TRANSPARENT;
+
+    /**
+     * @param width  of the destination image in pixels
+     * @param height of the destination image in pixels
+     */
+    public Composition(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Composition size must be positive, was " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Draw the full View with its top-left corner at the given offset
+     */
+    public Composition addView(@NonNull View view, int left, int top) {
+        return addView(view, null, left, top);
+    }
+
+    /**
+     * Draw a part of the View with the top-left corner of the region at the given offset
+     *
+     * @param region in pixels relative to the View, or null for the full View
+     */
+    public Composition addView(@NonNull View view, @Nullable Rect region, int left, int top) {
+        layers.add(new Layer(view, region != null ? new Rect(region) : null, left, top));
+        return this;
+    }
+
+    /**
+     * Color to fill the areas not covered by any View, default is transparent
+     */
+    public Composition setBackgroundColor(@ColorInt int backgroundColor) {
+        this.backgroundColor = backgroundColor;
+        return this;
+    }
+
+    Context getContext() {
+        if (layers.isEmpty()) {
+            throw new IllegalStateException("Composition has no views");
+        }
+        return layers.get(0).view.getContext();
+    }
+
+    long getByteCount() {
+        return (long) width * height * 4;
+    }
+
+    /**
+     * @return true if {@link #draw(PixelCopyHelper.PixelCopyListener)} copies SurfaceViews and then finishes on the main thread
+     */
+    boolean hasSurfaceViews() {
+        for (Layer layer : layers) {
+            if (layer.view instanceof SurfaceView) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the pixels of all SurfaceViews first and then draws every layer in one pass on the main thread.
+     * <p>Every call keeps its own copies, so overlapping saves of the same Composition don't share any state.</p>
+     *
+     * @throws IllegalArgumentException if a region is outside its View, before any copy was requested
+     */
+    void draw(@NonNull final PixelCopyHelper.PixelCopyListener listener) {
+        final List<Layer> drawnLayers = new ArrayList<>(layers);
+        final Rect[] captureRects = new Rect[drawnLayers.size()];
+        int surfaceCount = 0;
+        for (int i = 0; i < drawnLayers.size(); i++) {
+            captureRects[i] = drawnLayers.get(i).getCaptureRect();
+            if (drawnLayers.get(i).view instanceof SurfaceView) {
+                surfaceCount++;
+            }
+        }
+
+        final Bitmap[] surfaceBitmaps = new Bitmap[drawnLayers.size()];
+        if (surfaceCount == 0) {
+            listener.onSurfaceBitmapReady(drawLayers(drawnLayers, captureRects, surfaceBitmaps));
+            return;
+        }
+
+        final AtomicInteger pending = new AtomicInteger(surfaceCount);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int i = 0; i < drawnLayers.size(); i++) {
+            if (!(drawnLayers.get(i).view instanceof SurfaceView)) {
+                continue;
+            }
+            final int index = i;
+            PixelCopyHelper.getSurfaceBitmap((SurfaceView) drawnLayers.get(i).view, captureRects[i], null, new PixelCopyHelper.PixelCopyListener() {
+                @Override
+                public void onSurfaceBitmapReady(Bitmap bitmap) {
+                    surfaceBitmaps[index] = bitmap;
+                    onSurfaceLayerDone();
+                }
+
+                @Override
+                public void onSurfaceBitmapError() {
+                    failed.set(true);
+                    onSurfaceLayerDone();
+                }
+
+                private void onSurfaceLayerDone() {
+                    if (pending.decrementAndGet() > 0) {
+                        return;
+                    }
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failed.get()) {
+                                recycle(surfaceBitmaps);
+                                listener.onSurfaceBitmapError();
+                            } else {
+                                listener.onSurfaceBitmapReady(drawLayers(drawnLayers, captureRects, surfaceBitmaps));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * @param captureRects   of the layers at the same index, null for a full View
+     * @param surfaceBitmaps the copied SurfaceViews at the index of their layer, recycled once drawn
+     */
+    private Bitmap drawLayers(List<Layer> drawnLayers, Rect[] captureRects, Bitmap[] surfaceBitmaps) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(backgroundColor);
+        for (int i = 0; i < drawnLayers.size(); i++) {
+            Layer layer = drawnLayers.get(i);
+            if (surfaceBitmaps[i] != null) {
+                canvas.drawBitmap(surfaceBitmaps[i], layer.left, layer.top, null);
+                continue;
+            }
+            Rect captureRect = captureRects[i];
+            int saveCount = canvas.save();
+            canvas.translate(layer.left, layer.top);
+            if (captureRect != null) {
+                canvas.clipRect(0, 0, captureRect.width(), captureRect.height());
+                canvas.translate(-captureRect.left, -captureRect.top);
+            }
+            layer.view.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+        canvas.setBitmap(null);
+        recycle(surfaceBitmaps);
+        return bitmap;
+    }
+
+    private static void recycle(Bitmap[] surfaceBitmaps) {
+        for (int i = 0; i < surfaceBitmaps.length; i++) {
+            if (surfaceBitmaps[i] != null) {
+                surfaceBitmaps[i].recycle();
+                surfaceBitmaps[i] = null;
+            }
+        }
+    }
+
+    private static class Layer {
+        private final View view;
+        private final Rect region;
+        private final int left;
+        private final int top;
+
+        Layer(View view, Rect region, int left, int top) {
+            this.view = view;
+            this.region = region;
+            this.left = left;
+            this.top = top;
+        }
+
+        /**
+         * @return the region clipped to the View bounds, or null if the full View should be drawn
+         */
+        @Nullable
+        Rect getCaptureRect() {
+            if (region == null) {
+                return null;
+            }
+            Rect captureRect = new Rect(0, 0, view.getWidth(), view.getHeight());
+            if (!captureRect.intersect(region)) {
+                throw new IllegalArgumentException("Region " + region.toShortString() + " is outside the View bounds " + captureRect.toShortString());
+            }
+            return captureRect;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The outcome of comparing a capture to a golden image, see {@link PixelDiff}.
+ */
+public class DiffResult {
+
+    private final int differentPixelCount;
+    private final int pixelCount;
+    private final Rect bounds;
+
+    DiffResult(int differentPixelCount, int pixelCount, Rect bounds) {
+        this.differentPixelCount = differentPixelCount;
+        this.pixelCount = pixelCount;
+        this.bounds = bounds;
+    }
+
+    /**
+     * @return true if every pixel matched within the tolerance
+     */
+    public boolean isMatch() {
+        return differentPixelCount == 0;
+    }
+
+    /**
+     * @return pixels where any channel differs by more than the tolerance
+     */
+    public int getDifferentPixelCount() {
+        return differentPixelCount;
+    }
+
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * @return the smallest rectangle containing all different pixels, or null if all pixels matched
+     */
+    @Nullable
+    public Rect getBounds() {
+        return bounds != null ? new Rect(bounds) : null;
+    }
+}
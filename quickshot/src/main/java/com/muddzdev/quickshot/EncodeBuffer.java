@@ -0,0 +1,69 @@
+package com.muddzdev.quickshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * An in-memory encode target which can be reused after {@link #reset()}.
+ * <p>Bytes beyond the limit are counted but not stored, so an encode which turns out too large never grows
+ * the buffer past the limit.</p>
+ */
+class EncodeBuffer extends ByteArrayOutputStream {
+
+    private long limit = Long.MAX_VALUE;
+    private long totalCount;
+
+    EncodeBuffer(int initialSize) {
+        super(initialSize);
+    }
+
+    void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if more bytes than the limit were written since the last reset
+     */
+    synchronized boolean isOverLimit() {
+        return totalCount > limit;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        totalCount++;
+        if (totalCount <= limit) {
+            super.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        totalCount += len;
+        if (totalCount <= limit) {
+            super.write(b, off, len);
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        totalCount = 0;
+    }
+
+    /**
+     * Writes the content without copying it like {@link #toByteArray()} would
+     */
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Adds the content to the checksum without copying it
+     */
+    synchronized void updateChecksum(Checksum checksum) {
+        checksum.update(buf, 0, count);
+    }
+}
@@ -0,0 +1,73 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes a bitmap into the format of an {@link Output}.
+ */
+class Encoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    static void encode(Bitmap bitmap, Output output, OutputStream out) throws IOException {
+        if (output.maxBytes > 0 && QuickShot.EXTENSION_JPG.equals(output.fileExtension)) {
+            encodeToFit(bitmap, output).writeTo(out);
+            return;
+        }
+
+        boolean compressed = true;
+        switch (output.fileExtension) {
+            case QuickShot.EXTENSION_JPG:
+                compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, output.jpgQuality, out);
+                break;
+            case QuickShot.EXTENSION_PNG:
+                if (output.paletteMode != Output.PALETTE_NONE
+                        && PalettePngEncoder.encode(bitmap, output.paletteMode == Output.PALETTE_QUANTIZE, out)) {
+                    break;
+                }
+                compressed = bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
+                break;
+        }
+        if (!compressed) {
+            throw new IOException("Couldn't compress the bitmap to " + output.fileExtension);
+        }
+    }
+
+    /**
+     * Binary searches the highest JPG quality, up to the quality of the output, whose encoding fits in maxBytes.
+     * Every attempt is encoded in memory, only the winning encoding is returned to be written.
+     *
+     * @throws IOException if not even the lowest quality fits
+     */
+    private static EncodeBuffer encodeToFit(Bitmap bitmap, Output output) throws IOException {
+        EncodeBuffer attempt = new EncodeBuffer(INITIAL_BUFFER_SIZE);
+        EncodeBuffer best = new EncodeBuffer(INITIAL_BUFFER_SIZE);
+        attempt.setLimit(output.maxBytes);
+        best.setLimit(output.maxBytes);
+        boolean found = false;
+        int low = 0;
+        int high = output.jpgQuality;
+        int quality = high; //the highest quality often fits already
+        while (low <= high) {
+            attempt.reset();
+            boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, attempt);
+            if (compressed && !attempt.isOverLimit()) {
+                EncodeBuffer swap = best;
+                best = attempt;
+                attempt = swap;
+                found = true;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+            quality = (low + high) >>> 1;
+        }
+        if (!found) {
+            throw new IOException("Couldn't compress the bitmap to " + output.maxBytes + " bytes or less");
+        }
+        return best;
+    }
+}
@@ -0,0 +1,43 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Fills the areas of masked Views, measured on the main thread when the capture was made, scaled to the captured bitmap.
+ */
+class MaskProcessor implements PixelProcessor {
+
+    private final List<Rect> rects;
+    private final int captureWidth;
+    private final int captureHeight;
+    private final Paint paint = new Paint();
+
+    /**
+     * @param rects         relative to the captured area
+     * @param captureWidth  of the captured area, before the bitmap was scaled to a destination or texture size
+     * @param captureHeight of the captured area, before the bitmap was scaled to a destination or texture size
+     */
+    MaskProcessor(List<Rect> rects, int captureWidth, int captureHeight, int color) {
+        this.rects = rects;
+        this.captureWidth = captureWidth;
+        this.captureHeight = captureHeight;
+        paint.setColor(color);
+    }
+
+    @Override
+    public void process(@NonNull Bitmap capture) {
+        Canvas canvas = new Canvas(capture);
+        canvas.scale((float) capture.getWidth() / captureWidth, (float) capture.getHeight() / captureHeight);
+        for (Rect rect : rects) {
+            canvas.drawRect(rect, paint);
+        }
+        canvas.setBitmap(null);
+    }
+}
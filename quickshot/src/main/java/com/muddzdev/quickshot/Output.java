@@ -0,0 +1,67 @@
+package com.muddzdev.quickshot;
+
+/**
+ * Describes one image written from a capture: its format and, for scaled outputs, the size to fit in.
+ */
+class Output {
+
+    static final int PALETTE_NONE = 0;
+    static final int PALETTE_EXACT = 1;
+    static final int PALETTE_QUANTIZE = 2;
+
+    final String suffix;
+    final String fileExtension;
+    final int jpgQuality;
+    final int maxWidth;
+    final int maxHeight;
+    final long maxBytes;
+    final int paletteMode;
+
+    /**
+     * @param suffix    appended to the filename, empty for the main output
+     * @param maxWidth  to scale the capture down to, or 0 to keep the full size
+     * @param maxHeight to scale the capture down to, or 0 to keep the full size
+     */
+    Output(String suffix, String fileExtension, int jpgQuality, int maxWidth, int maxHeight) {
+        this(suffix, fileExtension, jpgQuality, maxWidth, maxHeight, 0);
+    }
+
+    /**
+     * @param maxBytes for .jpg the maximum file size to pick the highest fitting quality for, or 0 for no limit
+     */
+    Output(String suffix, String fileExtension, int jpgQuality, int maxWidth, int maxHeight, long maxBytes) {
+        this(suffix, fileExtension, jpgQuality, maxWidth, maxHeight, maxBytes, PALETTE_NONE);
+    }
+
+    /**
+     * @param paletteMode for .png whether to write an indexed color image, only if it has 256 colors or fewer
+     *                    or also by quantizing more colors
+     */
+    Output(String suffix, String fileExtension, int jpgQuality, int maxWidth, int maxHeight, long maxBytes, int paletteMode) {
+        this.suffix = suffix;
+        this.fileExtension = fileExtension;
+        this.jpgQuality = jpgQuality;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxBytes = maxBytes;
+        this.paletteMode = paletteMode;
+    }
+
+    boolean isScaled() {
+        return maxWidth > 0 && maxHeight > 0;
+    }
+
+    /**
+     * @return the output size for a capture of the given size, keeping the aspect ratio and never scaling up
+     */
+    int[] getSize(int width, int height) {
+        if (!isScaled()) {
+            return new int[]{width, height};
+        }
+        return QuickShotUtils.fitSize(width, height, maxWidth, maxHeight);
+    }
+
+    String getDisplayName(String filename) {
+        return filename + suffix;
+    }
+}
@@ -0,0 +1,343 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a bitmap as an 8-bit indexed color PNG, which is much smaller than the 32-bit PNG of Bitmap.compress()
+ * for flat UI with few colors.
+ * <p>The colors are counted in one pass. With 256 colors or fewer the palette is exact, above that the bitmap is
+ * either left to Bitmap.compress() or quantized to the 256 most used colors.</p>
+ */
+class PalettePngEncoder {
+
+    private static final int MAX_COLORS = 256;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * @param quantize true to reduce more than 256 colors to a palette, false to write nothing then
+     * @return false if nothing was written because the bitmap has too many colors
+     */
+    static boolean encode(Bitmap bitmap, boolean quantize, OutputStream out) throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+
+        ColorTable table = new ColorTable();
+        Indexer indexer = table;
+        if (!countColors(bitmap, row, table)) {
+            if (!quantize) {
+                return false;
+            }
+            indexer = new Quantizer(bitmap, row);
+        }
+        int[] palette = indexer.getPalette();
+
+        DataOutputStream png = new DataOutputStream(out);
+        CRC32 crc = new CRC32();
+        png.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; //bit depth
+        header[9] = 3; //indexed color
+        writeChunk(png, crc, IHDR, header, header.length);
+        writePalette(png, crc, palette);
+        writeImageData(png, crc, bitmap, row, indexer);
+        writeChunk(png, crc, IEND, new byte[0], 0);
+        png.flush();
+        return true;
+    }
+
+    /**
+     * @return false as soon as there are more colors than fit in a palette
+     */
+    private static boolean countColors(Bitmap bitmap, int[] row, ColorTable table) {
+        int width = bitmap.getWidth();
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int previous = row[0];
+            if (!table.add(previous)) {
+                return false;
+            }
+            for (int x = 1; x < width; x++) {
+                int color = row[x];
+                if (color != previous) {
+                    if (!table.add(color)) {
+                        return false;
+                    }
+                    previous = color;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes PLTE and, only if any color is translucent, tRNS up to the last translucent color
+     */
+    private static void writePalette(DataOutputStream png, CRC32 crc, int[] palette) throws IOException {
+        byte[] rgb = new byte[palette.length * 3];
+        byte[] alpha = new byte[palette.length];
+        int alphaLength = 0;
+        for (int i = 0; i < palette.length; i++) {
+            int color = palette[i];
+            rgb[i * 3] = (byte) (color >> 16);
+            rgb[i * 3 + 1] = (byte) (color >> 8);
+            rgb[i * 3 + 2] = (byte) color;
+            alpha[i] = (byte) (color >>> 24);
+            if (color >>> 24 != 0xFF) {
+                alphaLength = i + 1;
+            }
+        }
+        writeChunk(png, crc, PLTE, rgb, rgb.length);
+        if (alphaLength > 0) {
+            writeChunk(png, crc, TRNS, alpha, alphaLength);
+        }
+    }
+
+    /**
+     * Deflates the rows of palette indices, each with filter type None as recommended for indexed images
+     */
+    private static void writeImageData(DataOutputStream png, CRC32 crc, Bitmap bitmap, int[] row, Indexer indexer) throws IOException {
+        int width = bitmap.getWidth();
+        byte[] indices = new byte[width + 1];
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        IdatOutputStream idat = new IdatOutputStream(png, crc);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(idat, deflater, 16 * 1024);
+            for (int y = 0; y < bitmap.getHeight(); y++) {
+                bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                int previous = row[0];
+                int index = indexer.indexOf(previous);
+                for (int x = 0; x < width; x++) {
+                    int color = row[x];
+                    if (color != previous) {
+                        index = indexer.indexOf(color);
+                        previous = color;
+                    }
+                    indices[x + 1] = (byte) index;
+                }
+                deflated.write(indices);
+            }
+            deflated.finish();
+            idat.writeChunk();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeChunk(DataOutputStream png, CRC32 crc, int type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = new byte[4];
+        putInt(typeBytes, 0, type);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        png.writeInt(length);
+        png.write(typeBytes);
+        png.write(data, 0, length);
+        png.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private interface Indexer {
+        int[] getPalette();
+
+        int indexOf(int color);
+    }
+
+    /**
+     * An open addressing hash table of up to 256 exact colors and their palette index
+     */
+    private static class ColorTable implements Indexer {
+        private static final int CAPACITY = 1024;
+        private static final int MASK = CAPACITY - 1;
+
+        private final int[] keys = new int[CAPACITY];
+        private final int[] indices = new int[CAPACITY]; //palette index + 1, 0 for an empty slot
+        private final int[] colors = new int[MAX_COLORS];
+        private int size;
+
+        /**
+         * @return false if the color is new and the table is full
+         */
+        boolean add(int color) {
+            int slot = slotOf(color);
+            if (indices[slot] != 0) {
+                return true;
+            }
+            if (size == MAX_COLORS) {
+                return false;
+            }
+            keys[slot] = color;
+            indices[slot] = size + 1;
+            colors[size++] = color;
+            return true;
+        }
+
+        @Override
+        public int[] getPalette() {
+            return Arrays.copyOf(colors, size);
+        }
+
+        @Override
+        public int indexOf(int color) {
+            return indices[slotOf(color)] - 1;
+        }
+
+        /**
+         * @return the slot holding the color, or the empty slot it belongs in
+         */
+        private int slotOf(int color) {
+            int slot = (color * 0x9E3779B9) >>> 22;
+            while (indices[slot] != 0 && keys[slot] != color) {
+                slot = (slot + 1) & MASK;
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Reduces the colors to ARGB4444 buckets and keeps the 256 most used ones. Each bucket is represented by the first
+     * color seen in it, so the dominant colors of flat UI stay exact. Other buckets map to their nearest palette color.
+     */
+    private static class Quantizer implements Indexer {
+        private static final int BUCKETS = 1 << 16;
+
+        private final int[] representatives = new int[BUCKETS];
+        private final int[] bucketIndices = new int[BUCKETS]; //palette index, or -1 until first needed
+        private final int[] palette;
+
+        Quantizer(Bitmap bitmap, int[] row) {
+            int[] counts = new int[BUCKETS];
+            int width = bitmap.getWidth();
+            for (int y = 0; y < bitmap.getHeight(); y++) {
+                bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                for (int x = 0; x < width; x++) {
+                    int bucket = bucketOf(row[x]);
+                    if (counts[bucket]++ == 0) {
+                        representatives[bucket] = row[x];
+                    }
+                }
+            }
+
+            int used = 0;
+            long[] ranked = new long[BUCKETS];
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (counts[bucket] > 0) {
+                    ranked[used++] = ((long) counts[bucket] << 16) | bucket;
+                }
+            }
+            Arrays.sort(ranked, 0, used);
+
+            Arrays.fill(bucketIndices, -1);
+            palette = new int[Math.min(MAX_COLORS, used)];
+            for (int i = 0; i < palette.length; i++) {
+                int bucket = (int) (ranked[used - 1 - i] & 0xFFFF);
+                palette[i] = representatives[bucket];
+                bucketIndices[bucket] = i;
+            }
+        }
+
+        @Override
+        public int[] getPalette() {
+            return palette;
+        }
+
+        @Override
+        public int indexOf(int color) {
+            int bucket = bucketOf(color);
+            if (bucketIndices[bucket] < 0) {
+                bucketIndices[bucket] = nearest(representatives[bucket]);
+            }
+            return bucketIndices[bucket];
+        }
+
+        private int nearest(int color) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < palette.length; i++) {
+                int distance = square((color >>> 24) - (palette[i] >>> 24))
+                        + square(((color >> 16) & 0xFF) - ((palette[i] >> 16) & 0xFF))
+                        + square(((color >> 8) & 0xFF) - ((palette[i] >> 8) & 0xFF))
+                        + square((color & 0xFF) - (palette[i] & 0xFF));
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            return best;
+        }
+
+        private static int square(int value) {
+            return value * value;
+        }
+
+        private static int bucketOf(int color) {
+            return ((color >>> 28) << 12) | (((color >>> 20) & 0xF) << 8) | (((color >>> 12) & 0xF) << 4) | ((color >>> 4) & 0xF);
+        }
+    }
+
+    /**
+     * Splits the deflated image data into IDAT chunks of a fixed size, so it never has to be held in memory at once
+     */
+    private static class IdatOutputStream extends OutputStream {
+        private final DataOutputStream png;
+        private final CRC32 crc;
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int count;
+
+        IdatOutputStream(DataOutputStream png, CRC32 crc) {
+            this.png = png;
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    writeChunk();
+                }
+                int copied = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        void writeChunk() throws IOException {
+            if (count > 0) {
+                PalettePngEncoder.writeChunk(png, crc, IDAT, buffer, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.muddzdev.quickshot;
+
+import android.os.Looper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the captures on their way to a sink like a {@link SequenceWriter}, so closing it waits for captures which
+ * are still being made, e.g. by PixelCopy, instead of failing them.
+ * <p>The sink is finished on its executor once the last pending capture was added.</p>
+ */
+class PendingCaptures {
+
+    private final String name;
+    private final ExecutorService executor;
+    private final Callable<Void> finisher;
+    private int count;
+    private int mainThreadCount;
+    private boolean closing;
+    private Future<Void> finished;
+
+    /**
+     * @param finisher closes the sink, run on the executor after every capture was added
+     */
+    PendingCaptures(String name, ExecutorService executor, Callable<Void> finisher) {
+        this.name = name;
+        this.executor = executor;
+        this.finisher = finisher;
+    }
+
+    /**
+     * Called before a capture is made
+     *
+     * @param needsMainThread true if the capture is only finished by a task on the main thread, e.g. a Composition
+     *                        drawing its Views once the PixelCopy of its SurfaceViews arrived
+     * @throws IllegalStateException if the sink is closed already
+     */
+    synchronized void begin(boolean needsMainThread) {
+        if (closing) {
+            throw new IllegalStateException(name + " is closed");
+        }
+        count++;
+        if (needsMainThread) {
+            mainThreadCount++;
+        }
+    }
+
+    /**
+     * Called once the capture was added to the sink, or couldn't be made
+     *
+     * @param needsMainThread as passed to {@link #begin(boolean)}
+     */
+    synchronized void end(boolean needsMainThread) {
+        count--;
+        if (needsMainThread) {
+            mainThreadCount--;
+        }
+        if (count == 0 && closing) {
+            finished = executor.submit(finisher);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Finishes the sink once the pending captures were added and blocks until then.
+     *
+     * @throws IllegalStateException on the main thread while a capture which needs the main thread is pending,
+     *                               since waiting for it would never end. Nothing is closed then, close again once
+     *                               its listener was called or from another thread
+     */
+    void close() throws IOException {
+        Future<Void> finish;
+        synchronized (this) {
+            if (finished == null && mainThreadCount > 0 && Looper.myLooper() == Looper.getMainLooper()) {
+                throw new IllegalStateException(name + " can't wait on the main thread for " + mainThreadCount
+                        + " Composition captures which are drawn on the main thread");
+            }
+            if (!closing) {
+                closing = true;
+                if (count == 0) {
+                    finished = executor.submit(finisher);
+                }
+            }
+            while (finished == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while closing " + name);
+                }
+            }
+            finish = finished;
+        }
+
+        try {
+            finish.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing " + name);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
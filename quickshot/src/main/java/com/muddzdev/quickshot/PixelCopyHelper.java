@@ -1,40 +1,118 @@
 package com.muddzdev.quickshot;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.PixelCopy;
 import android.view.SurfaceView;
+import android.view.View;
+import android.view.Window;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 class PixelCopyHelper {
 
     private static final String TAG = PixelCopyHelper.class.getSimpleName();
 
-    static void getSurfaceBitmap(@NonNull SurfaceView surfaceView, @NonNull final PixelCopyListener listener) {
-        final Bitmap bitmap = Bitmap.createBitmap(surfaceView.getWidth(), surfaceView.getHeight(), Bitmap.Config.ARGB_8888);
-        final HandlerThread handlerThread = new HandlerThread(PixelCopyHelper.class.getSimpleName());
-        handlerThread.start();
+    private static Handler copyHandler;
 
+    /**
+     * @param srcRect     the part of the surface to copy, or null to copy the whole surface
+     * @param destination the bitmap to copy into, scaled to its size, or null to allocate one with the size of the copied area.
+     *                    It's never recycled
+     */
+    static void getSurfaceBitmap(@NonNull SurfaceView surfaceView, @Nullable Rect srcRect, @Nullable Bitmap destination, @NonNull final PixelCopyListener listener) {
+        int width = srcRect != null ? srcRect.width() : surfaceView.getWidth();
+        int height = srcRect != null ? srcRect.height() : surfaceView.getHeight();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            PixelCopy.request(surfaceView, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+            final boolean allocated = destination == null;
+            final Bitmap bitmap = allocated ? Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888) : destination;
+            try {
+                PixelCopy.request(surfaceView, srcRect, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+                    @Override
+                    public void onPixelCopyFinished(int copyResult) {
+                        if (copyResult == PixelCopy.SUCCESS) {
+                            listener.onSurfaceBitmapReady(bitmap);
+                        } else {
+                            Log.e(TAG, "Couldn't create bitmap of the SurfaceView");
+                            if (allocated) {
+                                bitmap.recycle();
+                            }
+                            listener.onSurfaceBitmapError();
+                        }
+                    }
+                }, getCopyHandler());
+            } catch (IllegalArgumentException e) {
+                //thrown right away if the surface isn't valid, e.g. not created yet or already destroyed
+                Log.e(TAG, "Couldn't copy the SurfaceView", e);
+                if (allocated) {
+                    bitmap.recycle();
+                }
+                listener.onSurfaceBitmapError();
+            }
+        } else {
+            Log.i(TAG, "Saving an image of a SurfaceView is only supported from API 24");
+            listener.onSurfaceBitmapError();
+        }
+    }
+
+    /**
+     * Copies the whole composed frame of the window, including any SurfaceViews, in a single request.
+     *
+     * @param srcRect     the part of the window to copy, or null to copy the whole window
+     * @param destination the bitmap to copy into, scaled to its size, or null to allocate one with the size of the copied area.
+     *                    It's never recycled
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    static void getWindowBitmap(@NonNull Window window, @Nullable Rect srcRect, @Nullable Bitmap destination, @NonNull final PixelCopyListener listener) {
+        View decorView = window.getDecorView();
+        int width = srcRect != null ? srcRect.width() : decorView.getWidth();
+        int height = srcRect != null ? srcRect.height() : decorView.getHeight();
+        final boolean allocated = destination == null;
+        final Bitmap bitmap = allocated ? Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888) : destination;
+
+        try {
+            PixelCopy.request(window, srcRect, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
                 @Override
                 public void onPixelCopyFinished(int copyResult) {
                     if (copyResult == PixelCopy.SUCCESS) {
                         listener.onSurfaceBitmapReady(bitmap);
                     } else {
-                        Log.e(TAG, "Couldn't create bitmap of the SurfaceView");
+                        Log.e(TAG, "Couldn't create bitmap of the Window");
+                        if (allocated) {
+                            bitmap.recycle();
+                        }
                         listener.onSurfaceBitmapError();
                     }
-                    handlerThread.quitSafely();
                 }
-            }, new Handler(handlerThread.getLooper()));
-        } else {
-            Log.i(TAG, "Saving an image of a SurfaceView is only supported from API 24");
+            }, getCopyHandler());
+        } catch (IllegalArgumentException e) {
+            //thrown right away if the window has no valid surface yet
+            Log.e(TAG, "Couldn't copy the Window", e);
+            if (allocated) {
+                bitmap.recycle();
+            }
+            listener.onSurfaceBitmapError();
+        }
+    }
+
+    /**
+     * @return the handler of the one thread all copy requests finish on, started with the first request and again
+     * if its looper was quit
+     */
+    private static synchronized Handler getCopyHandler() {
+        if (copyHandler == null || !copyHandler.getLooper().getThread().isAlive()) {
+            HandlerThread handlerThread = new HandlerThread("QuickShot-PixelCopy", Process.THREAD_PRIORITY_BACKGROUND);
+            handlerThread.start();
+            copyHandler = new Handler(handlerThread.getLooper());
         }
+        return copyHandler;
     }
 
     interface PixelCopyListener {
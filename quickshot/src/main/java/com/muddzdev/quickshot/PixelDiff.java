@@ -0,0 +1,254 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a capture to a golden image pixel by pixel, e.g. for screenshot regression tests, without encoding or
+ * decoding either of them. See {@link QuickShot#compareTo(Bitmap, int, boolean, DiffListener)}.
+ * <p>The rows are split into bands which are scanned in parallel. Every scanning thread reuses its own row buffers,
+ * so the scan itself doesn't allocate.</p>
+ */
+public final class PixelDiff {
+
+    private static final int DIFF_COLOR = 0xFFFF0000;
+    private static final int SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final ThreadPoolExecutor scanExecutor = createScanExecutor();
+    private static final ExecutorService compareExecutor = Executors.newSingleThreadExecutor(
+            new QuickShotThreadFactory("QuickShot-Diff", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final ThreadLocal<int[][]> rowBuffers = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[2][0];
+        }
+    };
+
+    private PixelDiff() {
+    }
+
+    /**
+     * Compares two images of the same size. Blocks until the scan is done, so don't call it on the main thread.
+     *
+     * @param tolerance the difference allowed in every ARGB channel, from 0 for an exact match to 255
+     * @param diffImage a mutable bitmap of the same size to draw the differences into, or null. Different pixels
+     *                  are red, matching pixels a faded gray version of the actual image
+     * @throws IllegalArgumentException if the sizes differ
+     */
+    @NonNull
+    public static DiffResult compare(@NonNull Bitmap actual, @NonNull Bitmap golden, int tolerance, @Nullable Bitmap diffImage) {
+        final int width = actual.getWidth();
+        final int height = actual.getHeight();
+        if (golden.getWidth() != width || golden.getHeight() != height) {
+            throw new IllegalArgumentException("Golden image must be " + width + "x" + height + " but was " + golden.getWidth() + "x" + golden.getHeight());
+        }
+        if (diffImage != null && (!diffImage.isMutable() || diffImage.getWidth() != width || diffImage.getHeight() != height)) {
+            throw new IllegalArgumentException("Diff image must be mutable and " + width + "x" + height);
+        }
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("Tolerance must be between 0 and 255");
+        }
+
+        int bandCount = Math.max(1, Math.min(SCAN_THREADS + 1, height));
+        int rowsPerBand = (height + bandCount - 1) / bandCount;
+        List<Future<int[]>> bands = new ArrayList<>();
+        for (int top = rowsPerBand; top < height; top += rowsPerBand) {
+            bands.add(scanExecutor.submit(new BandScan(actual, golden, diffImage, tolerance, top, Math.min(height, top + rowsPerBand))));
+        }
+        //The calling thread scans the first band itself
+        int[] total = new BandScan(actual, golden, diffImage, tolerance, 0, Math.min(height, rowsPerBand)).call();
+        for (Future<int[]> band : bands) {
+            merge(total, getBand(band));
+        }
+        Rect bounds = total[0] > 0 ? new Rect(total[1], total[2], total[3] + 1, total[4] + 1) : null;
+        return new DiffResult(total[0], width * height, bounds);
+    }
+
+    /**
+     * Compares on a background thread, releases the capture and saves the diff image with the request if it differs
+     */
+    static void compareAsync(final Context context, final Bitmap capture, final Bitmap golden, final int tolerance,
+                             final boolean saveDiffImage, final SaveRequest request, final DiffListener diffListener) {
+        compareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DiffResult result = null;
+                Bitmap diffImage = null;
+                try {
+                    request.process(capture);
+                    if (saveDiffImage) {
+                        diffImage = Bitmap.createBitmap(capture.getWidth(), capture.getHeight(), Bitmap.Config.ARGB_8888);
+                    }
+                    result = compare(capture, golden, tolerance, diffImage);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    request.releaseBitmap(capture);
+                }
+
+                if (diffImage != null) {
+                    if (result != null && !result.isMatch()) {
+                        SaveScheduler.submit(new BitmapSaver(context, diffImage, request.forCopy()));
+                    } else {
+                        diffImage.recycle();
+                    }
+                }
+                final DiffResult diffResult = result;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (diffResult != null) {
+                            diffListener.onDiffReady(diffResult);
+                        } else {
+                            diffListener.onDiffFailed();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static int[] getBand(Future<int[]> band) {
+        try {
+            return band.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while comparing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Couldn't compare a band", e.getCause());
+        }
+    }
+
+    /**
+     * Adds the count of the band and grows the bounds, both are {count, left, top, right, bottom}
+     */
+    private static void merge(int[] total, int[] band) {
+        if (band[0] == 0) {
+            return;
+        }
+        if (total[0] == 0) {
+            System.arraycopy(band, 1, total, 1, 4);
+        } else {
+            total[1] = Math.min(total[1], band[1]);
+            total[2] = Math.min(total[2], band[2]);
+            total[3] = Math.max(total[3], band[3]);
+            total[4] = Math.max(total[4], band[4]);
+        }
+        total[0] += band[0];
+    }
+
+    private static ThreadPoolExecutor createScanExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SCAN_THREADS, SCAN_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new QuickShotThreadFactory("QuickShot-DiffScan", Process.THREAD_PRIORITY_BACKGROUND));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class BandScan implements Callable<int[]> {
+        private final Bitmap actual;
+        private final Bitmap golden;
+        private final Bitmap diffImage;
+        private final int tolerance;
+        private final int top;
+        private final int bottom;
+
+        BandScan(Bitmap actual, Bitmap golden, Bitmap diffImage, int tolerance, int top, int bottom) {
+            this.actual = actual;
+            this.golden = golden;
+            this.diffImage = diffImage;
+            this.tolerance = tolerance;
+            this.top = top;
+            this.bottom = bottom;
+        }
+
+        @Override
+        public int[] call() {
+            int width = actual.getWidth();
+            int[][] rows = rowBuffers.get();
+            if (rows[0].length < width) {
+                rows[0] = new int[width];
+                rows[1] = new int[width];
+            }
+            int[] actualRow = rows[0];
+            int[] goldenRow = rows[1];
+            int count = 0;
+            int left = width;
+            int right = -1;
+            int firstRow = -1;
+            int lastRow = -1;
+
+            for (int y = top; y < bottom; y++) {
+                actual.getPixels(actualRow, 0, width, 0, y, width, 1);
+                golden.getPixels(goldenRow, 0, width, 0, y, width, 1);
+                int rowCount = 0;
+                for (int x = 0; x < width; x++) {
+                    int a = actualRow[x];
+                    int g = goldenRow[x];
+                    if (a != g && !isWithinTolerance(a, g, tolerance)) {
+                        rowCount++;
+                        left = Math.min(left, x);
+                        right = Math.max(right, x);
+                        actualRow[x] = DIFF_COLOR;
+                    } else if (diffImage != null) {
+                        actualRow[x] = fade(a);
+                    }
+                }
+                if (rowCount > 0) {
+                    count += rowCount;
+                    if (firstRow < 0) {
+                        firstRow = y;
+                    }
+                    lastRow = y;
+                }
+                if (diffImage != null) {
+                    diffImage.setPixels(actualRow, 0, width, 0, y, width, 1);
+                }
+            }
+            return new int[]{count, left, firstRow, right, lastRow};
+        }
+
+        private static boolean isWithinTolerance(int a, int g, int tolerance) {
+            return Math.abs((a >>> 24) - (g >>> 24)) <= tolerance
+                    && Math.abs(((a >> 16) & 0xFF) - ((g >> 16) & 0xFF)) <= tolerance
+                    && Math.abs(((a >> 8) & 0xFF) - ((g >> 8) & 0xFF)) <= tolerance
+                    && Math.abs((a & 0xFF) - (g & 0xFF)) <= tolerance;
+        }
+
+        /**
+         * @return a light gray of the pixel's luminance, so the red differences stand out
+         */
+        private static int fade(int color) {
+            int luminance = (((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 150 + (color & 0xFF) * 29) >> 8;
+            int gray = 192 + (luminance >> 2);
+            return 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        }
+    }
+
+    public interface DiffListener {
+        void onDiffReady(@NonNull DiffResult result);
+
+        /**
+         * The capture couldn't be made or compared, e.g. because the golden image has a different size
+         */
+        void onDiffFailed();
+    }
+}
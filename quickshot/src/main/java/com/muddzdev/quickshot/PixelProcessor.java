@@ -0,0 +1,17 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Changes a capture in place before it's encoded, e.g. to draw a watermark, see {@link QuickShot#addProcessor(PixelProcessor)}.
+ */
+public interface PixelProcessor {
+
+    /**
+     * Called on a background thread with the captured bitmap, which is mutable unless a bitmap passed to
+     * {@link QuickShot#of(android.graphics.Bitmap, android.content.Context)} wasn't
+     */
+    void process(@NonNull Bitmap capture);
+}
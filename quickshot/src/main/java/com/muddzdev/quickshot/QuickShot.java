@@ -1,33 +1,25 @@
 package com.muddzdev.quickshot;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
-import android.os.AsyncTask;
+import android.graphics.Color;
+import android.graphics.Rect;
 import android.os.Build;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.MediaStore;
-import android.util.Log;
 import android.view.SurfaceView;
 import android.view.TextureView;
 import android.view.View;
+import android.view.Window;
 
+import androidx.annotation.ColorInt;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.lang.ref.WeakReference;
-
-import static android.os.Environment.DIRECTORY_PICTURES;
+import java.util.ArrayList;
+import java.util.List;
 
 /*
  * Copyright 2018 Muddi Walid
@@ -47,21 +39,42 @@ import static android.os.Environment.DIRECTORY_PICTURES;
 
 public class QuickShot {
 
-    private static final String TAG = QuickShot.class.getSimpleName();
-    private static final String EXTENSION_JPG = ".jpg";
-    private static final String EXTENSION_PNG = ".png";
-    private static final String EXTENSION_NOMEDIA = ".nomedia";
+    static final String EXTENSION_JPG = ".jpg";
+    static final String EXTENSION_PNG = ".png";
+    static final String EXTENSION_NOMEDIA = ".nomedia";
     private static final int JPG_MAX_QUALITY = 100;
+    private static final Handler handler = new Handler(Looper.getMainLooper());
 
     private boolean saveInternal;
+    private boolean spillToDisk;
+    private SaveScheduler.Priority priority = SaveScheduler.Priority.INTERACTIVE;
+    private String cacheKey;
     private int jpgQuality = JPG_MAX_QUALITY;
+    private long jpgMaxBytes;
+    private int paletteMode = Output.PALETTE_NONE;
     private String fileExtension = EXTENSION_JPG;
     private String filename = String.valueOf(System.currentTimeMillis());
     private String path;
-    private Bitmap bitmap;
+    private Rect region;
+    private final List<Output> scaledOutputs = new ArrayList<>();
+    private final List<Output> formatOutputs = new ArrayList<>();
+    private final List<PixelProcessor> processors = new ArrayList<>();
+    private final List<View> maskedViews = new ArrayList<>();
+    private int maskColor = Color.BLACK;
+    private PixelProcessor maskProcessor;
+    private Bitmap sourceBitmap;
+    private BitmapOwnership sourceOwnership = BitmapOwnership.OWNED;
+    private BitmapReleaseListener releaseListener;
+    private Bitmap destinationBitmap;
+    private int textureWidth;
+    private int textureHeight;
+    private boolean drawTextureOverlay;
     private View view;
+    private Window window;
+    private Composition composition;
     private Context context;
     private QuickShotListener listener;
+    private QuickShotOutputsListener outputsListener;
 
 
     private QuickShot(@NonNull View view) {
@@ -70,18 +83,48 @@ public class QuickShot {
     }
 
     private QuickShot(@NonNull Bitmap bitmap, @NonNull Context context) {
-        this.bitmap = bitmap;
+        this.sourceBitmap = bitmap;
         this.context = context;
     }
 
+    private QuickShot(@NonNull Composition composition) {
+        this.composition = composition;
+        this.context = composition.getContext();
+    }
+
+    private QuickShot(@NonNull Window window) {
+        this.window = window;
+        this.view = window.getDecorView();
+        this.context = window.getContext();
+    }
+
     public static QuickShot of(@NonNull View view) {
         return new QuickShot(view);
     }
 
+    /**
+     * The bitmap is handed over and recycled once saved, unless it's borrowed with {@link #borrowBitmap(BitmapReleaseListener)}
+     * or returned with {@link #returnBitmapToPool()}
+     */
     public static QuickShot of(@NonNull Bitmap bitmap, @NonNull Context context) {
         return new QuickShot(bitmap, context);
     }
 
+    /**
+     * Save everything visible in the Window, including SurfaceViews, with a single PixelCopy request.
+     * <p>Below Android O (API 26) the window's decor View is drawn instead, which leaves SurfaceViews empty.</p>
+     */
+    public static QuickShot of(@NonNull Window window) {
+        return new QuickShot(window);
+    }
+
+    /**
+     * Save several Views laid out into one image with a single draw pass
+     */
+    public static QuickShot of(@NonNull Composition composition) {
+        return new QuickShot(composition);
+    }
+
     /**
      * @param filename if not set, filename defaults to a timestamp from {@link System#currentTimeMillis}
      */
@@ -122,8 +165,172 @@ public class QuickShot {
         return this;
     }
 
+    /**
+     * Only capture a part of the View, SurfaceView or Bitmap instead of its full size.
+     * <p>The region is clipped to the bounds of the source and the saved image will have the size of the clipped region.</p>
+     *
+     * @param region in pixels relative to the top-left corner of the source
+     */
+    public QuickShot setRegion(@NonNull Rect region) {
+        this.region = new Rect(region);
+        return this;
+    }
+
+    /**
+     * Also save a scaled down copy of the same capture, e.g. a thumbnail, in the same format and path.
+     * <p>The copy keeps the aspect ratio and fits within the given size. Copies are downsampled from each other,
+     * largest first, and encoded in parallel, so adding several sizes costs much less than several captures.</p>
+     *
+     * @param suffix appended to the filename of the copy, e.g. "_thumb"
+     */
+    public QuickShot addScaledOutput(@NonNull String suffix, int maxWidth, int maxHeight) {
+        if (suffix.isEmpty() || maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("Scaled outputs need a suffix and a positive size");
+        }
+        scaledOutputs.add(new Output(suffix, null, 0, maxWidth, maxHeight));
+        return this;
+    }
+
+    /**
+     * Listen for the path and Uri of every saved image, including scaled outputs, when calling save()
+     */
+    public QuickShot setOutputsListener(QuickShotOutputsListener outputsListener) {
+        this.outputsListener = outputsListener;
+        return this;
+    }
+
+    /**
+     * Write the raw capture to app-private storage first and encode it later on a background drainer.
+     * <p>Use this when capturing in bursts faster than images can be encoded, or when captures must not be lost if
+     * the process dies before they are saved. See {@link SpillQueue} for limits and resuming after a restart.</p>
+     */
+    public QuickShot spillToDisk() {
+        this.spillToDisk = true;
+        return this;
+    }
+
+    /**
+     * @param priority {@link SaveScheduler.Priority#BACKGROUND} for captures nobody is waiting for, so they never
+     *                 hold up interactive ones. Default is {@link SaveScheduler.Priority#INTERACTIVE}
+     */
+    public QuickShot setPriority(@NonNull SaveScheduler.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Capture into this bitmap instead of allocating a new one for every save().
+     * <p>The bitmap is never recycled by QuickShot and can be reused for the next save() once
+     * onQuickShotSuccess() or onQuickShotFailed() was called. It must be mutable. A View, TextureView, SurfaceView or
+     * Window capture of another size than the bitmap is scaled to its size.</p>
+     *
+     * @throws IllegalStateException if this QuickShot was made of a Composition or a Bitmap, which have their own bitmap
+     */
+    public QuickShot setDestinationBitmap(@NonNull Bitmap destinationBitmap) {
+        if (!destinationBitmap.isMutable()) {
+            throw new IllegalArgumentException("The destination bitmap must be mutable");
+        }
+        if (composition != null || sourceBitmap != null) {
+            throw new IllegalStateException("Only a View or Window can be captured into a destination bitmap");
+        }
+        this.destinationBitmap = destinationBitmap;
+        return this;
+    }
+
+    /**
+     * Only for TextureViews: capture the texture scaled to this size instead of the size of the View.
+     * <p>TextureViews are captured into a reused bitmap from an internal pool, or into the destination bitmap if one
+     * is set, so repeated captures don't allocate. A region stays in pixels of the View and is scaled along with the texture.</p>
+     */
+    public QuickShot setTextureSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Texture size must be positive, was " + width + "x" + height);
+        }
+        this.textureWidth = width;
+        this.textureHeight = height;
+        return this;
+    }
+
+    /**
+     * Only for TextureViews: also draw the View itself on top of the texture, e.g. a foreground drawable.
+     * Default is false since the texture already contains everything a TextureView shows.
+     */
+    public QuickShot setDrawTextureOverlay(boolean drawTextureOverlay) {
+        this.drawTextureOverlay = drawTextureOverlay;
+        return this;
+    }
+
+    /**
+     * Keep the encoded image and a preview of this capture in the {@link CaptureCache} under the given key,
+     * e.g. the filename, for an instant preview or re-share after onQuickShotSuccess()
+     */
+    public QuickShot setCacheKey(@NonNull String cacheKey) {
+        this.cacheKey = cacheKey;
+        return this;
+    }
+
+    /**
+     * Only read the bitmap passed to {@link #of(Bitmap, Context)}, without copying or recycling it.
+     *
+     * @param releaseListener called on the main thread once QuickShot is done reading the bitmap, from then on it
+     *                        may be changed or recycled again
+     * @throws IllegalStateException if this QuickShot wasn't made of a bitmap
+     */
+    public QuickShot borrowBitmap(@Nullable BitmapReleaseListener releaseListener) {
+        setSourceOwnership(BitmapOwnership.BORROWED);
+        this.releaseListener = releaseListener;
+        return this;
+    }
+
+    /**
+     * Put the bitmap passed to {@link #of(Bitmap, Context)} into the {@link BitmapPool} once saved, e.g. a bitmap
+     * from {@link BitmapPool#acquire(int, int)}, so the next capture can reuse it instead of allocating
+     *
+     * @throws IllegalStateException if this QuickShot wasn't made of a bitmap
+     */
+    public QuickShot returnBitmapToPool() {
+        setSourceOwnership(BitmapOwnership.POOLED);
+        this.releaseListener = null;
+        return this;
+    }
+
+    private void setSourceOwnership(BitmapOwnership ownership) {
+        if (sourceBitmap == null) {
+            throw new IllegalStateException("Only a bitmap passed to QuickShot.of(Bitmap, Context) has an owner to choose");
+        }
+        this.sourceOwnership = ownership;
+    }
+
+    /**
+     * Run a processor on the captured bitmap in place, after it was captured and before it's encoded, e.g. to draw a
+     * watermark. Processors run in the order they were added on a background thread. A borrowed bitmap is changed too.
+     */
+    public QuickShot addProcessor(@NonNull PixelProcessor processor) {
+        processors.add(processor);
+        return this;
+    }
+
+    /**
+     * Fill the area of a View inside the captured View or Window, e.g. one showing sensitive data. Its position is
+     * taken when the capture is made and filled in place before any other processor runs. Hidden Views are skipped.
+     */
+    public QuickShot addMaskedView(@NonNull View maskedView) {
+        maskedViews.add(maskedView);
+        return this;
+    }
+
+    /**
+     * @param maskColor to fill masked Views with, default is black
+     */
+    public QuickShot setMaskColor(@ColorInt int maskColor) {
+        this.maskColor = maskColor;
+        return this;
+    }
+
     private void setFileExtension(String fileExtension) {
         this.fileExtension = fileExtension;
+        this.jpgMaxBytes = 0;
+        this.paletteMode = Output.PALETTE_NONE;
     }
 
     /**
@@ -146,6 +353,21 @@ public class QuickShot {
         return this;
     }
 
+    /**
+     * Save as .jpg format in the highest quality whose file size is at most maxBytes.
+     * <p>The quality is found with a binary search of at most 8 encodes done in memory, only the winning encode is
+     * written. The save fails if not even the lowest quality fits.</p>
+     */
+    public QuickShot toJPGMaxSize(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max size must be positive, was " + maxBytes);
+        }
+        jpgQuality = JPG_MAX_QUALITY;
+        setFileExtension(EXTENSION_JPG);
+        jpgMaxBytes = maxBytes;
+        return this;
+    }
+
     /**
      * Save as .png format for lossless compression
      * default is .jpg
@@ -155,6 +377,65 @@ public class QuickShot {
         return this;
     }
 
+    /**
+     * Save as .png with a palette of up to 256 colors, which is much smaller for flat UI. The colors are counted
+     * first, a capture with more colors is saved like {@link #toPNG()}
+     */
+    public QuickShot toPalettePNG() {
+        return toPalettePNG(false);
+    }
+
+    /**
+     * Save as .png with a palette of up to 256 colors, which is much smaller for flat UI
+     *
+     * @param quantize true to reduce a capture with more colors to its 256 most used colors, which is lossy.
+     *                 False to save it like {@link #toPNG()}
+     */
+    public QuickShot toPalettePNG(boolean quantize) {
+        setFileExtension(EXTENSION_PNG);
+        paletteMode = quantize ? Output.PALETTE_QUANTIZE : Output.PALETTE_EXACT;
+        return this;
+    }
+
+    /**
+     * Also save the same capture as .jpg in a custom quality between 0-100, next to the main image.
+     * <p>All formats are encoded in parallel from the one captured bitmap, which is released after the last encoder finished.
+     * If the main image is saved as .jpg too, use {@link #alsoToJPG(int, String)} to give this one another name.</p>
+     */
+    public QuickShot alsoToJPG(int jpgQuality) {
+        return alsoToJPG(jpgQuality, "");
+    }
+
+    /**
+     * Also save the same capture as .jpg in a custom quality between 0-100, e.g. a smaller preview next to a .jpg
+     * main image
+     *
+     * @param suffix appended to the filename of this image, e.g. "_preview"
+     */
+    public QuickShot alsoToJPG(int jpgQuality, @NonNull String suffix) {
+        formatOutputs.add(new Output(suffix, EXTENSION_JPG, jpgQuality, 0, 0));
+        return this;
+    }
+
+    /**
+     * Also save the same capture as .png, next to the main image.
+     * <p>All formats are encoded in parallel from the one captured bitmap, which is released after the last encoder finished.
+     * If the main image is saved as .png too, use {@link #alsoToPNG(String)} to give this one another name.</p>
+     */
+    public QuickShot alsoToPNG() {
+        return alsoToPNG("");
+    }
+
+    /**
+     * Also save the same capture as .png, e.g. a lossless copy next to a palette .png main image
+     *
+     * @param suffix appended to the filename of this image, e.g. "_full"
+     */
+    public QuickShot alsoToPNG(@NonNull String suffix) {
+        formatOutputs.add(new Output(suffix, EXTENSION_PNG, 0, 0, 0));
+        return this;
+    }
+
     /**
      * Save as .nomedia for making the picture invisible for photo viewer apps and galleries.
      */
@@ -171,181 +452,403 @@ public class QuickShot {
     }
 
     private Bitmap getBitmap() {
-        if (bitmap != null) {
-            return bitmap;
+        if (sourceBitmap != null) {
+            return cropBitmap(sourceBitmap, sourceOwnership);
         } else if (view instanceof TextureView) {
-            bitmap = ((TextureView) view).getBitmap();
-            Canvas canvas = new Canvas(bitmap);
-            view.draw(canvas);
-            canvas.setBitmap(null);
-            return bitmap;
+            Bitmap texture = getTextureBitmap((TextureView) view);
+            if (drawTextureOverlay) {
+                Canvas canvas = new Canvas(texture);
+                canvas.scale((float) texture.getWidth() / view.getWidth(), (float) texture.getHeight() / view.getHeight());
+                view.draw(canvas);
+                canvas.setBitmap(null);
+            }
+            return cropBitmap(texture, texture == destinationBitmap ? BitmapOwnership.BORROWED : BitmapOwnership.POOLED);
         } else {
-            bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
+            Rect captureRect = getCaptureRect(view.getWidth(), view.getHeight());
+            Bitmap capture = obtainBitmap(captureRect.width(), captureRect.height());
+            Canvas canvas = new Canvas(capture);
+            canvas.scale((float) capture.getWidth() / captureRect.width(), (float) capture.getHeight() / captureRect.height());
+            canvas.translate(-captureRect.left, -captureRect.top);
             view.draw(canvas);
             canvas.setBitmap(null);
-            return bitmap;
+            return capture;
+        }
+    }
+
+    /**
+     * Copies the texture into the destination bitmap, or a pooled bitmap, without allocating a new one
+     */
+    private Bitmap getTextureBitmap(TextureView textureView) {
+        if (destinationBitmap != null) {
+            return textureView.getBitmap(destinationBitmap);
+        }
+        int[] size = getTextureSize(textureView);
+        return textureView.getBitmap(BitmapPool.acquire(size[0], size[1]));
+    }
+
+    private int[] getTextureSize(TextureView textureView) {
+        if (textureWidth > 0) {
+            return new int[]{textureWidth, textureHeight};
+        }
+        return new int[]{textureView.getWidth(), textureView.getHeight()};
+    }
+
+    /**
+     * @return the destination bitmap cleared for drawing, which may have another size, or a new bitmap if none was set
+     */
+    private Bitmap obtainBitmap(int width, int height) {
+        if (destinationBitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         }
+        destinationBitmap.eraseColor(Color.TRANSPARENT);
+        return destinationBitmap;
+    }
+
+    /**
+     * Crops a full sized bitmap to the region, if any. The full sized bitmap is released when a cropped copy was made.
+     *
+     * @param ownership of the full sized bitmap
+     */
+    private Bitmap cropBitmap(Bitmap source, BitmapOwnership ownership) {
+        if (region == null) {
+            return source;
+        }
+        Rect captureRect = getSourceCaptureRect(source.getWidth(), source.getHeight());
+        Bitmap cropped = Bitmap.createBitmap(source, captureRect.left, captureRect.top, captureRect.width(), captureRect.height());
+        if (cropped != source) {
+            createSaveRequest(source, ownership).releaseBitmap(source);
+        }
+        return cropped;
+    }
+
+    /**
+     * The region is in pixels of the View. A texture captured at another size, or into a destination bitmap, is
+     * scaled, so the region is scaled along with it.
+     *
+     * @return the region in pixels of a source of the given size, clipped to it
+     */
+    private Rect getSourceCaptureRect(int sourceWidth, int sourceHeight) {
+        if (view == null || (view.getWidth() == sourceWidth && view.getHeight() == sourceHeight)) {
+            return getCaptureRect(sourceWidth, sourceHeight);
+        }
+        Rect viewRect = getCaptureRect(view.getWidth(), view.getHeight());
+        float scaleX = (float) sourceWidth / view.getWidth();
+        float scaleY = (float) sourceHeight / view.getHeight();
+        int left = Math.min(sourceWidth - 1, Math.round(viewRect.left * scaleX));
+        int top = Math.min(sourceHeight - 1, Math.round(viewRect.top * scaleY));
+        int right = Math.min(sourceWidth, Math.max(left + 1, Math.round(viewRect.right * scaleX)));
+        int bottom = Math.min(sourceHeight, Math.max(top + 1, Math.round(viewRect.bottom * scaleY)));
+        return new Rect(left, top, right, bottom);
+    }
+
+    /**
+     * @return the region clipped to the given source size, or the full source size if no region is set
+     * @throws IllegalArgumentException if the region is completely outside the source
+     */
+    private Rect getCaptureRect(int width, int height) {
+        Rect captureRect = new Rect(0, 0, width, height);
+        if (region != null && !captureRect.intersect(region)) {
+            throw new IllegalArgumentException("Region " + region.toShortString() + " is outside the source bounds " + captureRect.toShortString());
+        }
+        return captureRect;
     }
 
 
     /**
      * save() runs in a asynchronous thread
+     * <p>If the {@link SaveScheduler} has limits set and the capture wouldn't fit, it fails without capturing anything.
+     * With {@link SaveScheduler.OverflowPolicy#BLOCK} save() waits for room before capturing instead and reserves it.</p>
      * @throws NullPointerException if View is null.
+     * @throws IllegalArgumentException if two outputs would be saved under the same name.
      */
 
-    //Lets make this prettier
     public void save() throws NullPointerException {
-        if (view instanceof SurfaceView) {
-            PixelCopyHelper.getSurfaceBitmap((SurfaceView) view, new PixelCopyHelper.PixelCopyListener() {
+        checkOutputs();
+        SaveScheduler.Reservation reservation = null;
+        if (!spillToDisk) {
+            reservation = SaveScheduler.reserve(getByteCountEstimate());
+            if (reservation == null) {
+                if (sourceBitmap != null) {
+                    createSaveRequest(sourceBitmap).releaseBitmap(sourceBitmap);
+                }
+                notifyFailed(path);
+                return;
+            }
+        }
+
+        try {
+            capture(saveWhenReady(reservation));
+        } catch (RuntimeException e) {
+            if (reservation != null) {
+                SaveScheduler.cancel(reservation);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Append the capture as the next frame of a sequence instead of saving it as an image.
+     * The listener is called with the path of the sequence file. Runs in a asynchronous thread.
+     * @throws NullPointerException if View is null.
+     * @throws IllegalStateException if the sequence is closed.
+     */
+    public void appendTo(@NonNull final SequenceWriter sequenceWriter) throws NullPointerException {
+        final boolean needsMainThread = composition != null && composition.hasSurfaceViews();
+        sequenceWriter.beginAppend(needsMainThread);
+        try {
+            capture(new PixelCopyHelper.PixelCopyListener() {
                 @Override
-                public void onSurfaceBitmapReady(Bitmap surfaceBitmap) {
-                    new BitmapSaver(getContext(), surfaceBitmap, saveInternal, path, filename, fileExtension, jpgQuality, listener).execute();
+                public void onSurfaceBitmapReady(Bitmap bitmap) {
+                    sequenceWriter.appendAsync(bitmap, createSaveRequest(bitmap), needsMainThread);
                 }
 
                 @Override
                 public void onSurfaceBitmapError() {
-                    if (listener != null) {
-                        listener.onQuickShotFailed(path);
-                    }
+                    sequenceWriter.cancelAppend(needsMainThread);
+                    notifyFailed(sequenceWriter.getFile().getAbsolutePath());
                 }
             });
-        } else {
-            new BitmapSaver(getContext(), getBitmap(), saveInternal, path, filename, fileExtension, jpgQuality, listener).execute();
+        } catch (RuntimeException e) {
+            sequenceWriter.cancelAppend(needsMainThread);
+            throw e;
         }
     }
 
-    public interface QuickShotListener {
-        void onQuickShotSuccess(String path);
-
-        void onQuickShotFailed(String path);
-    }
-
-    static class BitmapSaver extends AsyncTask<Void, Void, Void> {
-
-        private final WeakReference<Context> weakContext;
-        private Handler handler = new Handler(Looper.getMainLooper());
-        private QuickShotListener listener;
-        private boolean success = true;
-        private boolean saveInternal;
-        private int jpgQuality;
-        private String path;
-        private String filename;
-        private String fileExtension;
-        private Bitmap bitmap;
-        private File file;
-
-        BitmapSaver(Context context, Bitmap bitmap, boolean saveInternal, String path, String filename, String fileExtension, int jpgQuality, QuickShotListener listener) {
-            this.weakContext = new WeakReference<>(context);
-            this.bitmap = bitmap;
-            this.saveInternal = saveInternal;
-            this.path = path;
-            this.filename = filename;
-            this.fileExtension = fileExtension;
-            this.jpgQuality = jpgQuality;
-            this.listener = listener;
-        }
+    /**
+     * Add the capture and its other outputs as entries of an archive instead of saving them as separate files.
+     * The filename is the name of the entry, with a _n suffix if it's taken. The listener is called with the path of the archive.
+     * Runs in a asynchronous thread.
+     * @throws NullPointerException if View is null.
+     * @throws IllegalArgumentException if two outputs would be saved under the same name.
+     * @throws IllegalStateException if the archive is closed.
+     */
+    public void appendTo(@NonNull final CaptureArchive archive) throws NullPointerException {
+        checkOutputs();
+        final boolean needsMainThread = composition != null && composition.hasSurfaceViews();
+        archive.beginAdd(needsMainThread);
+        try {
+            capture(new PixelCopyHelper.PixelCopyListener() {
+                @Override
+                public void onSurfaceBitmapReady(Bitmap bitmap) {
+                    archive.addAsync(bitmap, createSaveRequest(bitmap), needsMainThread);
+                }
 
-        private void save() {
-            if (path == null) {
-                path = Environment.getExternalStorageDirectory() + File.separator + DIRECTORY_PICTURES;
-            }
-            File directory = new File(path);
-            directory.mkdirs();
-            file = new File(directory, filename + fileExtension);
-            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
-                switch (fileExtension) {
-                    case EXTENSION_JPG:
-                        bitmap.compress(Bitmap.CompressFormat.JPEG, jpgQuality, out);
-                        break;
-                    case EXTENSION_PNG:
-                        bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
-                        break;
+                @Override
+                public void onSurfaceBitmapError() {
+                    archive.cancelAdd(needsMainThread);
+                    notifyFailed(archive.getPath());
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                success = false;
-                cancel(true);
-            } finally {
-                bitmap.recycle();
-                bitmap = null;
-            }
+            });
+        } catch (RuntimeException e) {
+            archive.cancelAdd(needsMainThread);
+            throw e;
         }
+    }
 
-        private void saveScoopedStorage() {
-            path = (path != null ? (DIRECTORY_PICTURES + File.separator + path) : DIRECTORY_PICTURES);
-            file = new File(path, filename + fileExtension); //only used for success/fail listeners
-            ContentResolver resolver = weakContext.get().getContentResolver();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, filename);
-            contentValues.put(MediaStore.MediaColumns.MIME_TYPE, QuickShotUtils.getMimeType(fileExtension));
-            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, path);
-            Uri imageUri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
-            if (imageUri == null) {
-                success = false;
-                String msg = String.format("ContentResolver couldn't create URI for filename: %s and path: %s", filename, path);
-                Log.e(TAG, msg);
-                return;
+    /**
+     * Compare the capture to a golden image of the same size, before it's encoded, instead of saving it.
+     * The DiffListener is called on the main thread.
+     *
+     * @param tolerance     the difference allowed in every ARGB channel, from 0 for an exact match to 255
+     * @param saveDiffImage true to save an image marking the differences in red, if there are any. It's saved like the
+     *                      capture would have been, with the filename, path, format and result listener of this QuickShot
+     * @throws NullPointerException if View is null.
+     * @throws IllegalArgumentException if two outputs would be saved under the same name.
+     */
+    public void compareTo(@NonNull final Bitmap golden, final int tolerance, final boolean saveDiffImage, @NonNull final PixelDiff.DiffListener diffListener) {
+        checkOutputs();
+        capture(new PixelCopyHelper.PixelCopyListener() {
+            @Override
+            public void onSurfaceBitmapReady(Bitmap bitmap) {
+                PixelDiff.compareAsync(getContext(), bitmap, golden, tolerance, saveDiffImage, createSaveRequest(bitmap), diffListener);
             }
 
-            try (OutputStream out = resolver.openOutputStream(imageUri)) {
-                switch (fileExtension) {
-                    case EXTENSION_JPG:
-                        bitmap.compress(Bitmap.CompressFormat.JPEG, jpgQuality, out);
-                        break;
-                    case EXTENSION_PNG:
-                        bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
-                        break;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                resolver.delete(imageUri, null, null);
-                success = false;
-                cancel(true);
-            } finally {
-                bitmap.recycle();
-                bitmap = null;
-            }
-        }
-
-        @Override
-        protected void onCancelled() {
-            if (listener != null) {
+            @Override
+            public void onSurfaceBitmapError() {
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onQuickShotFailed(file.getAbsolutePath());
+                        diffListener.onDiffFailed();
                     }
                 });
             }
+        });
+    }
+
+    /**
+     * Captures the View, SurfaceView, Window, Composition or Bitmap and hands the result to the listener
+     */
+    private void capture(PixelCopyHelper.PixelCopyListener captureListener) {
+        maskProcessor = createMaskProcessor();
+        if (window != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            Rect srcRect = region != null ? getCaptureRect(view.getWidth(), view.getHeight()) : null;
+            PixelCopyHelper.getWindowBitmap(window, srcRect, destinationBitmap, captureListener);
+        } else if (composition != null) {
+            composition.draw(captureListener);
+        } else if (view instanceof SurfaceView) {
+            Rect srcRect = region != null ? getCaptureRect(view.getWidth(), view.getHeight()) : null;
+            PixelCopyHelper.getSurfaceBitmap((SurfaceView) view, srcRect, destinationBitmap, captureListener);
+        } else {
+            captureListener.onSurfaceBitmapReady(getBitmap());
         }
+    }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-            if (QuickShotUtils.isAboveAPI29() && !saveInternal) {
-                saveScoopedStorage();
-            } else {
-                save();
-            }
+    /**
+     * Measures the masked Views relative to the captured area, on the main thread while the capture is made
+     *
+     * @return null if there is nothing to mask
+     */
+    private PixelProcessor createMaskProcessor() {
+        if (maskedViews.isEmpty() || view == null) {
             return null;
         }
+        Rect captureRect = getCaptureRect(view.getWidth(), view.getHeight());
+        int[] origin = new int[2];
+        view.getLocationInWindow(origin);
+        int[] location = new int[2];
+        List<Rect> rects = new ArrayList<>();
+        for (View maskedView : maskedViews) {
+            if (maskedView.getVisibility() != View.VISIBLE) {
+                continue;
+            }
+            maskedView.getLocationInWindow(location);
+            int left = location[0] - origin[0] - captureRect.left;
+            int top = location[1] - origin[1] - captureRect.top;
+            rects.add(new Rect(left, top, left + maskedView.getWidth(), top + maskedView.getHeight()));
+        }
+        return rects.isEmpty() ? null : new MaskProcessor(rects, captureRect.width(), captureRect.height(), maskColor);
+    }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-            if (listener == null) {
-                return;
+    /**
+     * @param reservation the room reserved for the capture in the {@link SaveScheduler}, or null when spilling to disk
+     */
+    private PixelCopyHelper.PixelCopyListener saveWhenReady(final SaveScheduler.Reservation reservation) {
+        return new PixelCopyHelper.PixelCopyListener() {
+            @Override
+            public void onSurfaceBitmapReady(Bitmap bitmap) {
+                saveBitmap(bitmap, reservation);
             }
 
-            if (success) {
-                listener.onQuickShotSuccess(file.getAbsolutePath());
-                if (!QuickShotUtils.isAboveAPI29()) {
-                    MediaScannerConnection.scanFile(weakContext.get(), new String[]{file.getAbsolutePath()}, null, null);
+            @Override
+            public void onSurfaceBitmapError() {
+                if (reservation != null) {
+                    SaveScheduler.cancel(reservation);
                 }
-            } else {
-                listener.onQuickShotFailed(file.getAbsolutePath());
+                notifyFailed(path);
             }
+        };
+    }
+
+    /**
+     * Posts the failure to the main thread like every other result, also when it's known before save() returns
+     */
+    private void notifyFailed(final String failedPath) {
+        final QuickShotListener failedListener = listener;
+        if (failedListener == null) {
+            return;
         }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                failedListener.onQuickShotFailed(failedPath);
+            }
+        });
     }
-}
 
+    private void saveBitmap(Bitmap bitmap, SaveScheduler.Reservation reservation) {
+        SaveRequest request = createSaveRequest(bitmap);
+        if (spillToDisk && SpillQueue.offer(getContext(), bitmap, request)) {
+            return;
+        }
+        SaveScheduler.submit(new BitmapSaver(getContext(), bitmap, request), reservation);
+    }
+
+    /**
+     * @return the memory the capture will need, without capturing it
+     */
+    private long getByteCountEstimate() {
+        if (sourceBitmap != null) {
+            return sourceBitmap.getByteCount();
+        } else if (destinationBitmap != null) {
+            return destinationBitmap.getByteCount();
+        } else if (composition != null) {
+            return composition.getByteCount();
+        } else if (view instanceof TextureView) {
+            int[] size = getTextureSize((TextureView) view);
+            Rect captureRect = getSourceCaptureRect(size[0], size[1]);
+            return (long) captureRect.width() * captureRect.height() * 4;
+        }
+        Rect captureRect = getCaptureRect(view.getWidth(), view.getHeight());
+        return (long) captureRect.width() * captureRect.height() * 4;
+    }
+
+    private BitmapOwnership getOwnership(Bitmap capture) {
+        if (capture == destinationBitmap) {
+            return BitmapOwnership.BORROWED;
+        } else if (capture == sourceBitmap) {
+            return sourceOwnership;
+        } else if (view instanceof TextureView && region == null) {
+            //the texture itself, a region of it is a copy
+            return BitmapOwnership.POOLED;
+        }
+        return BitmapOwnership.OWNED;
+    }
+
+    /**
+     * @throws IllegalArgumentException if two outputs would be written to the same file, checked before capturing
+     *                                  since the format of the main image can be changed after adding others
+     */
+    private void checkOutputs() {
+        List<String> names = new ArrayList<>();
+        names.add(fileExtension);
+        for (Output scaled : scaledOutputs) {
+            names.add(scaled.suffix + fileExtension);
+        }
+        for (Output format : formatOutputs) {
+            String name = format.suffix + format.fileExtension;
+            if (names.contains(name)) {
+                throw new IllegalArgumentException("Another output is already saved as " + name + ", give the "
+                        + format.fileExtension + " output a suffix");
+            }
+            names.add(name);
+        }
+    }
+
+    private SaveRequest createSaveRequest(Bitmap capture) {
+        return createSaveRequest(capture, getOwnership(capture));
+    }
+
+    private SaveRequest createSaveRequest(Bitmap capture, BitmapOwnership ownership) {
+        BitmapReleaseListener captureReleaseListener = capture == sourceBitmap ? releaseListener : null;
+        List<Output> outputs = new ArrayList<>();
+        outputs.add(new Output("", fileExtension, jpgQuality, 0, 0, jpgMaxBytes, paletteMode));
+        for (Output scaled : scaledOutputs) {
+            outputs.add(new Output(scaled.suffix, fileExtension, jpgQuality, scaled.maxWidth, scaled.maxHeight, 0, paletteMode));
+        }
+        List<PixelProcessor> captureProcessors = new ArrayList<>();
+        if (maskProcessor != null) {
+            captureProcessors.add(maskProcessor);
+        }
+        captureProcessors.addAll(processors);
+        outputs.addAll(formatOutputs);
+        return new SaveRequest(saveInternal, path, filename, outputs, priority, ownership, captureReleaseListener, cacheKey,
+                captureProcessors, listener, outputsListener);
+    }
+
+    public interface QuickShotListener {
+        void onQuickShotSuccess(String path);
+
+        void onQuickShotFailed(String path);
+    }
+
+    public interface BitmapReleaseListener {
+        void onBitmapReleased(Bitmap bitmap);
+    }
+
+    public interface QuickShotOutputsListener {
+        /**
+         * @param savedImages the main image first, followed by the other outputs in the order they were added
+         */
+        void onQuickShotOutputsSaved(List<SavedImage> savedImages);
+    }
+}
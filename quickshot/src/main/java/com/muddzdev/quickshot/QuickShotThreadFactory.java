@@ -0,0 +1,34 @@
+package com.muddzdev.quickshot;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named threads running at the given {@link Process} thread priority.
+ */
+class QuickShotThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final String name;
+    private final int threadPriority;
+
+    QuickShotThreadFactory(String name, int threadPriority) {
+        this.name = name;
+        this.threadPriority = threadPriority;
+    }
+
+    @Override
+    public Thread newThread(@NonNull final Runnable runnable) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(threadPriority);
+                runnable.run();
+            }
+        }, name + "-" + count.incrementAndGet());
+    }
+}
@@ -25,6 +25,41 @@ class QuickShotUtils {
     }
 
 
+    /**
+     * @return the size which fits within the max size keeping the aspect ratio, never scaling up
+     */
+    static int[] fitSize(int width, int height, int maxWidth, int maxHeight) {
+        float scale = Math.min(1f, Math.min((float) maxWidth / width, (float) maxHeight / height));
+        return new int[]{Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+
+    /**
+     * Scales the source down to the given size by halving it with bilinear filtering until the next halving would
+     * be smaller than the target. This keeps the quality of large reductions without resampling the full size source
+     * for every step. The source is never recycled, intermediate bitmaps are.
+     *
+     * @return the source itself if it already has the given size
+     */
+    static Bitmap downsample(Bitmap source, int width, int height) {
+        Bitmap current = source;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            Bitmap half = Bitmap.createScaledBitmap(current, current.getWidth() / 2, current.getHeight() / 2, true);
+            if (current != source) {
+                current.recycle();
+            }
+            current = half;
+        }
+        if (current.getWidth() != width || current.getHeight() != height) {
+            Bitmap scaled = Bitmap.createScaledBitmap(current, width, height, true);
+            if (current != source) {
+                current.recycle();
+            }
+            current = scaled;
+        }
+        return current;
+    }
+
+
     //TODO Is it the libraries responsibility to handle this?
     private Bitmap generateLongBitmap(RecyclerView recyclerView) {
 
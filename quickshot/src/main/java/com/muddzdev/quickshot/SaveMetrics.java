@@ -0,0 +1,117 @@
+package com.muddzdev.quickshot;
+
+/**
+ * A snapshot of the save queue, see {@link SaveScheduler#getMetrics()}.
+ */
+public class SaveMetrics {
+
+    private final int pendingCount;
+    private final int backgroundPendingCount;
+    private final int runningCount;
+    private final long inFlightBytes;
+    private final long completedCount;
+    private final long rejectedCount;
+    private final long droppedCount;
+    private final long coalescedCount;
+    private final long spilledBytes;
+    private final int throttledWriteCount;
+    private final long throttledMillis;
+    private final long writtenBytes;
+
+    SaveMetrics(int pendingCount, int backgroundPendingCount, int runningCount, long inFlightBytes, long completedCount, long rejectedCount,
+                long droppedCount, long coalescedCount, long spilledBytes, int throttledWriteCount, long throttledMillis, long writtenBytes) {
+        this.pendingCount = pendingCount;
+        this.backgroundPendingCount = backgroundPendingCount;
+        this.runningCount = runningCount;
+        this.inFlightBytes = inFlightBytes;
+        this.completedCount = completedCount;
+        this.rejectedCount = rejectedCount;
+        this.droppedCount = droppedCount;
+        this.coalescedCount = coalescedCount;
+        this.spilledBytes = spilledBytes;
+        this.throttledWriteCount = throttledWriteCount;
+        this.throttledMillis = throttledMillis;
+        this.writtenBytes = writtenBytes;
+    }
+
+    /**
+     * @return captures waiting to be saved
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return captures with {@link SaveScheduler.Priority#BACKGROUND} waiting to be saved, included in the pending count
+     */
+    public int getBackgroundPendingCount() {
+        return backgroundPendingCount;
+    }
+
+    /**
+     * @return captures being encoded and written right now
+     */
+    public int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * @return bitmap memory held by pending and running captures
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return captures failed because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return pending captures failed to make room for newer ones
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return pending captures replaced by a newer capture of the same file
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return disk space used by captures waiting in the {@link SpillQueue}
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return writes waiting for budget right now, see {@link SaveScheduler#setWriteRateLimit(SaveScheduler.Priority, long)}
+     */
+    public int getThrottledWriteCount() {
+        return throttledWriteCount;
+    }
+
+    /**
+     * @return the total time writes waited for budget
+     */
+    public long getThrottledMillis() {
+        return throttledMillis;
+    }
+
+    /**
+     * @return the total bytes of encoded images written
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+}
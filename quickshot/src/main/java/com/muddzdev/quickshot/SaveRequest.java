@@ -0,0 +1,85 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The file attributes of a {@link QuickShot} at the time save() was called, handed to the {@link BitmapSaver}.
+ */
+class SaveRequest {
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    final boolean saveInternal;
+    final String path;
+    final String filename;
+    final List<Output> outputs;
+    final SaveScheduler.Priority priority;
+    final BitmapOwnership ownership;
+    final QuickShot.BitmapReleaseListener releaseListener;
+    final String cacheKey;
+    final List<PixelProcessor> processors;
+    final QuickShot.QuickShotListener listener;
+    final QuickShot.QuickShotOutputsListener outputsListener;
+
+    SaveRequest(boolean saveInternal, String path, String filename, List<Output> outputs, SaveScheduler.Priority priority,
+                BitmapOwnership ownership, QuickShot.BitmapReleaseListener releaseListener, String cacheKey,
+                List<PixelProcessor> processors, QuickShot.QuickShotListener listener,
+                QuickShot.QuickShotOutputsListener outputsListener) {
+        this.saveInternal = saveInternal;
+        this.path = path;
+        this.filename = filename;
+        this.outputs = outputs;
+        this.priority = priority;
+        this.ownership = ownership;
+        this.releaseListener = releaseListener;
+        this.cacheKey = cacheKey;
+        this.processors = processors;
+        this.listener = listener;
+        this.outputsListener = outputsListener;
+    }
+
+    /**
+     * @return this request for a processed copy of the capture, e.g. one restored from disk, which the pipeline owns
+     */
+    SaveRequest forCopy() {
+        return new SaveRequest(saveInternal, path, filename, outputs, priority, BitmapOwnership.OWNED, null, cacheKey,
+                Collections.<PixelProcessor>emptyList(), listener, outputsListener);
+    }
+
+    /**
+     * @return this request for the same capture once the processors ran on it
+     */
+    SaveRequest processed() {
+        return new SaveRequest(saveInternal, path, filename, outputs, priority, ownership, releaseListener, cacheKey,
+                Collections.<PixelProcessor>emptyList(), listener, outputsListener);
+    }
+
+    /**
+     * Runs the processors on the capture in place, in the order they were added
+     */
+    void process(Bitmap capture) {
+        for (PixelProcessor processor : processors) {
+            processor.process(capture);
+        }
+    }
+
+    /**
+     * Releases the captured bitmap according to its ownership once the pipeline is done with it
+     */
+    void releaseBitmap(final Bitmap bitmap) {
+        ownership.release(bitmap);
+        if (releaseListener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseListener.onBitmapReleased(bitmap);
+                }
+            });
+        }
+    }
+}
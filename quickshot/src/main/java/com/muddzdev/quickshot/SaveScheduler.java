@@ -0,0 +1,357 @@
+package com.muddzdev.quickshot;
+
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every save() in the background and keeps the captures waiting to be saved within limits.
+ * <p>By default there is no limit. With {@link #setLimits(int, long, OverflowPolicy)} the number of captures and
+ * the bitmap memory held by pending and running saves is bounded, and the {@link OverflowPolicy} decides what
+ * happens to a capture which doesn't fit.</p>
+ * <p>Captures with {@link Priority#INTERACTIVE} have their own queue and threads, so they never wait behind
+ * {@link Priority#BACKGROUND} captures, which run on lower priority threads.</p>
+ */
+public final class SaveScheduler {
+
+    public enum Priority {
+        /**
+         * A capture the user is waiting for, this is the default
+         */
+        INTERACTIVE,
+        /**
+         * A capture nobody is waiting for, saved on lower priority threads when there is time
+         */
+        BACKGROUND
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Fail the new capture with onQuickShotFailed()
+         */
+        REJECT,
+        /**
+         * Fail the oldest pending captures with onQuickShotFailed() until the new capture fits, background captures first
+         */
+        DROP_OLDEST,
+        /**
+         * Block the thread calling save() until the new capture fits, before it's made. The room is reserved, so a
+         * capture which waited is never rejected once made. Captures made on the main thread are rejected instead
+         */
+        BLOCK,
+        /**
+         * Replace a pending capture of the same path, filename and priority with the new capture, reject it if there is none
+         */
+        COALESCE
+    }
+
+    private static final int INTERACTIVE_WORKER_COUNT = 2;
+    private static final int BACKGROUND_WORKER_COUNT = 1;
+    private static final Object lock = new Object();
+    private static final LinkedList<BitmapSaver> interactivePending = new LinkedList<>();
+    private static final LinkedList<BitmapSaver> backgroundPending = new LinkedList<>();
+    private static final ThreadPoolExecutor interactiveExecutor = createExecutor(INTERACTIVE_WORKER_COUNT,
+            new QuickShotThreadFactory("QuickShot-Saver", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final ThreadPoolExecutor backgroundExecutor = createExecutor(BACKGROUND_WORKER_COUNT,
+            new QuickShotThreadFactory("QuickShot-BackgroundSaver", Process.THREAD_PRIORITY_LOWEST));
+    private static final WriteThrottle interactiveThrottle = new WriteThrottle();
+    private static final WriteThrottle backgroundThrottle = new WriteThrottle();
+
+    private static int maxInFlight = Integer.MAX_VALUE;
+    private static long maxInFlightBytes = Long.MAX_VALUE;
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private static boolean pauseBackground;
+    private static int interactiveRunning;
+    private static int backgroundRunning;
+    private static long inFlightBytes;
+    private static int reservedCount;
+    private static long reservedBytes;
+    private static long completed;
+    private static long rejected;
+    private static long dropped;
+    private static long coalesced;
+
+    private SaveScheduler() {
+    }
+
+    /**
+     * Bound the captures waiting to be saved or being saved. A single capture larger than the limits is
+     * still accepted when nothing else is in flight.
+     *
+     * @param maxInFlight      the maximum number of captures
+     * @param maxInFlightBytes the maximum bitmap memory of all captures
+     * @param overflowPolicy   what to do with a capture which doesn't fit
+     */
+    public static void setLimits(int maxInFlight, long maxInFlightBytes, @NonNull OverflowPolicy overflowPolicy) {
+        if (maxInFlight <= 0 || maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        synchronized (lock) {
+            SaveScheduler.maxInFlight = maxInFlight;
+            SaveScheduler.maxInFlightBytes = maxInFlightBytes;
+            SaveScheduler.overflowPolicy = overflowPolicy;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @param pauseBackground true to hold back {@link Priority#BACKGROUND} captures while any
+     *                        {@link Priority#INTERACTIVE} capture is pending or running. Default is false
+     */
+    public static void setPauseBackgroundWhileInteractive(boolean pauseBackground) {
+        synchronized (lock) {
+            SaveScheduler.pauseBackground = pauseBackground;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Pace how fast captures of the given priority are written to storage, so saving many images doesn't starve
+     * the app's own disk I/O. Encoded images are written in large chunks as the budget allows.
+     * <p>This covers saved images, captures spilled to disk and captures added to a {@link SequenceWriter} or
+     * {@link CaptureArchive}. Frames appended directly with {@link SequenceWriter#append(android.graphics.Bitmap)} count as
+     * {@link Priority#INTERACTIVE}.</p>
+     *
+     * @param bytesPerSecond the write budget shared by all captures of the priority, or 0 for no limit, which is the default
+     */
+    public static void setWriteRateLimit(@NonNull Priority priority, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Write rate limit can't be negative");
+        }
+        getWriteThrottle(priority).setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return a snapshot of the queue depth, overflow counters and write throttling
+     */
+    @NonNull
+    public static SaveMetrics getMetrics() {
+        int throttledWrites = interactiveThrottle.getWaitingCount() + backgroundThrottle.getWaitingCount();
+        long throttledMillis = TimeUnit.NANOSECONDS.toMillis(interactiveThrottle.getThrottledNanos() + backgroundThrottle.getThrottledNanos());
+        long writtenBytes = interactiveThrottle.getWrittenBytes() + backgroundThrottle.getWrittenBytes();
+        synchronized (lock) {
+            return new SaveMetrics(interactivePending.size() + backgroundPending.size(), backgroundPending.size(),
+                    interactiveRunning + backgroundRunning, inFlightBytes, completed, rejected, dropped, coalesced, SpillQueue.getQueuedBytes(),
+                    throttledWrites, throttledMillis, writtenBytes);
+        }
+    }
+
+    /**
+     * Reserves room for a capture before it's made, so it's never rejected once made. Blocks until it fits if the
+     * policy is {@link OverflowPolicy#BLOCK}, unless called on the main thread. Captures only ever wait here, and
+     * never on the thread delivering them, which for PixelCopy is shared by all captures.
+     *
+     * @return the reservation to submit the capture with or {@link #cancel(Reservation)} if it couldn't be made,
+     * or null if the capture would be rejected right away, so it doesn't need to be made at all
+     */
+    @Nullable
+    static Reservation reserve(long bytes) {
+        synchronized (lock) {
+            while (!fits(bytes)) {
+                switch (overflowPolicy) {
+                    case REJECT:
+                        return null;
+                    case BLOCK:
+                        if (isMainThread()) {
+                            return null;
+                        }
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                        break;
+                    default:
+                        //Makes room once captured, by dropping or replacing a pending capture
+                        return new Reservation(0, 0);
+                }
+            }
+            reservedCount++;
+            reservedBytes += bytes;
+            return new Reservation(1, bytes);
+        }
+    }
+
+    /**
+     * Gives back the room of a capture which couldn't be made
+     */
+    static void cancel(@NonNull Reservation reservation) {
+        synchronized (lock) {
+            release(reservation);
+            lock.notifyAll();
+        }
+    }
+
+    static void submit(@NonNull BitmapSaver saver) {
+        submit(saver, null);
+    }
+
+    /**
+     * @param reservation made with {@link #reserve(long)} before capturing, or null
+     */
+    static void submit(@NonNull BitmapSaver saver, @Nullable Reservation reservation) {
+        final Priority priority = saver.getPriority();
+        long bytes = saver.getByteCount();
+        synchronized (lock) {
+            boolean reserved = reservation != null && reservation.count > 0;
+            if (reservation != null) {
+                release(reservation);
+            }
+            while (!reserved && !fits(bytes)) {
+                switch (overflowPolicy) {
+                    case REJECT:
+                    case BLOCK: //a capture which waited in reserve() is never rejected here
+                        reject(saver);
+                        return;
+                    case DROP_OLDEST:
+                        LinkedList<BitmapSaver> dropFrom = !backgroundPending.isEmpty() ? backgroundPending : interactivePending;
+                        if (dropFrom.isEmpty()) {
+                            reject(saver);
+                            return;
+                        }
+                        BitmapSaver oldest = dropFrom.removeFirst();
+                        inFlightBytes -= oldest.getByteCount();
+                        dropped++;
+                        oldest.fail();
+                        break;
+                    case COALESCE:
+                        if (!replacePending(saver)) {
+                            reject(saver);
+                        }
+                        return;
+                }
+            }
+            getPending(priority).addLast(saver);
+            inFlightBytes += bytes;
+            if (priority == Priority.INTERACTIVE) {
+                lock.notifyAll();
+            }
+        }
+        getExecutor(priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                runNext(priority);
+            }
+        });
+    }
+
+    /**
+     * Every submitted saver schedules one of these. A dropped saver leaves its run without work, a coalesced
+     * saver takes over the run of the saver it replaced.
+     */
+    private static void runNext(Priority priority) {
+        BitmapSaver saver;
+        synchronized (lock) {
+            if (priority == Priority.BACKGROUND) {
+                while (pauseBackground && (!interactivePending.isEmpty() || interactiveRunning > 0)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            saver = getPending(priority).pollFirst();
+            if (saver == null) {
+                return;
+            }
+            setRunning(priority, 1);
+        }
+        try {
+            saver.run();
+        } finally {
+            synchronized (lock) {
+                setRunning(priority, -1);
+                completed++;
+                inFlightBytes -= saver.getByteCount();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static void release(Reservation reservation) {
+        reservedCount -= reservation.count;
+        reservedBytes -= reservation.bytes;
+        reservation.count = 0;
+        reservation.bytes = 0;
+    }
+
+    private static boolean replacePending(BitmapSaver saver) {
+        ListIterator<BitmapSaver> iterator = getPending(saver.getPriority()).listIterator();
+        while (iterator.hasNext()) {
+            BitmapSaver old = iterator.next();
+            if (old.getKey().equals(saver.getKey())) {
+                iterator.set(saver);
+                inFlightBytes += saver.getByteCount() - old.getByteCount();
+                coalesced++;
+                old.fail();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reject(BitmapSaver saver) {
+        rejected++;
+        saver.fail();
+    }
+
+    private static void setRunning(Priority priority, int delta) {
+        if (priority == Priority.INTERACTIVE) {
+            interactiveRunning += delta;
+        } else {
+            backgroundRunning += delta;
+        }
+    }
+
+    private static LinkedList<BitmapSaver> getPending(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactivePending : backgroundPending;
+    }
+
+    static WriteThrottle getWriteThrottle(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveThrottle : backgroundThrottle;
+    }
+
+    private static ThreadPoolExecutor getExecutor(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveExecutor : backgroundExecutor;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int workerCount, QuickShotThreadFactory threadFactory) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workerCount, workerCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static boolean fits(long bytes) {
+        int inFlight = interactivePending.size() + backgroundPending.size() + interactiveRunning + backgroundRunning + reservedCount;
+        return inFlight == 0 || (inFlight < maxInFlight && inFlightBytes + reservedBytes + bytes <= maxInFlightBytes);
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Room held for a capture between {@link #reserve(long)} and submitting it, released exactly once
+     */
+    static final class Reservation {
+        private int count;
+        private long bytes;
+
+        private Reservation(int count, long bytes) {
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.muddzdev.quickshot;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An image written by {@link QuickShot#save()}, one for each requested output.
+ */
+public class SavedImage {
+
+    private final String name;
+    private final String path;
+    private final Uri uri;
+    private final int width;
+    private final int height;
+
+    SavedImage(String name, String path, Uri uri, int width, int height) {
+        this.name = name;
+        this.path = path;
+        this.uri = uri;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the filename including its extension
+     */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the absolute path, for Android Q (+API 29) public storage it's relative to the storage root
+     */
+    @NonNull
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return a content Uri for Android Q (+API 29) public storage, otherwise a file Uri
+     */
+    @NonNull
+    public Uri getUri() {
+        return uri;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,145 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reconstructs frames of a sequence written by a {@link SequenceWriter}.
+ * <p>A frame is rebuilt from the nearest keyframe before it by applying the deltas in between. Reading frames in
+ * order continues from the previously read frame instead. Frames can be exported with
+ * {@code QuickShot.of(reader.getFrame(index), context).save()}.</p>
+ */
+public class SequenceReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final List<long[]> frames = new ArrayList<>(); //payload offset, payload length and type of every frame
+    private final int[] pixels;
+    private final ByteBuffer tileBytes;
+    private final IntBuffer tilePixels;
+    private final Inflater inflater = new Inflater();
+    private byte[] payload = new byte[64 * 1024];
+    private int currentFrame = -1;
+
+    public SequenceReader(@NonNull File sequenceFile) throws IOException {
+        file = new RandomAccessFile(sequenceFile, "r");
+        try {
+            if (file.readInt() != SequenceWriter.MAGIC || file.readInt() != SequenceWriter.VERSION) {
+                throw new IOException("Not a sequence of this version: " + sequenceFile.getName());
+            }
+            width = file.readInt();
+            height = file.readInt();
+            tileSize = file.readInt();
+            indexFrames();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        tilesX = (width + tileSize - 1) / tileSize;
+        pixels = new int[width * height];
+        tileBytes = ByteBuffer.allocate(tileSize * tileSize * 4);
+        tilePixels = tileBytes.asIntBuffer();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * @return a new bitmap with the frame, owned by the caller
+     */
+    @NonNull
+    public synchronized Bitmap getFrame(int index) throws IOException {
+        if (index < 0 || index >= frames.size()) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frames.size());
+        }
+        int keyframe = index;
+        while (frames.get(keyframe)[2] != SequenceWriter.FRAME_KEY) {
+            keyframe--;
+        }
+        int start = currentFrame >= keyframe && currentFrame <= index ? currentFrame + 1 : keyframe;
+        for (int i = start; i <= index; i++) {
+            applyFrame(frames.get(i));
+            currentFrame = i;
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    private void indexFrames() throws IOException {
+        long length = file.length();
+        long position = file.getFilePointer();
+        while (position < length) {
+            long payloadOffset = position + 5;
+            if (payloadOffset > length) {
+                break; //the last frame header was cut off, e.g. the writer wasn't closed
+            }
+            byte type = file.readByte();
+            int payloadLength = file.readInt();
+            if (payloadLength < 0 || payloadOffset + payloadLength > length) {
+                break; //the last frame was cut off
+            }
+            if (frames.isEmpty() && type != SequenceWriter.FRAME_KEY) {
+                throw new IOException("Sequence doesn't start with a keyframe");
+            }
+            frames.add(new long[]{payloadOffset, payloadLength, type});
+            position = payloadOffset + payloadLength;
+            file.seek(position);
+        }
+    }
+
+    private void applyFrame(long[] frame) throws IOException {
+        int payloadLength = (int) frame[1];
+        if (payload.length < payloadLength) {
+            payload = new byte[payloadLength];
+        }
+        file.seek(frame[0]);
+        file.readFully(payload, 0, payloadLength);
+
+        inflater.reset();
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload, 0, payloadLength), inflater, 16 * 1024));
+        int tileCount = in.readInt();
+        for (int i = 0; i < tileCount; i++) {
+            int tile = in.readInt();
+            int tileX = (tile % tilesX) * tileSize;
+            int tileY = (tile / tilesX) * tileSize;
+            int tileWidth = Math.min(tileSize, width - tileX);
+            int tileHeight = Math.min(tileSize, height - tileY);
+            in.readFully(tileBytes.array(), 0, tileWidth * tileHeight * 4);
+            tilePixels.clear();
+            for (int y = tileY; y < tileY + tileHeight; y++) {
+                tilePixels.get(pixels, y * width + tileX, tileWidth);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Stores a sequence of captures of the same size as keyframes and deltas in one compact file.
+ * <p>Every frame is split into square tiles. A keyframe stores all tiles, later frames only store the tiles whose
+ * hash changed since the previous frame. Tiles are deflated per frame. Frames are read back with a {@link SequenceReader}.</p>
+ *
+ * <p>File layout, all numbers big-endian:</p>
+ * <pre>
+ * header: int magic 'QSEQ', int version, int width, int height, int tileSize
+ * frame:  byte type (0 keyframe, 1 delta), int payload length, deflated payload
+ * payload: int tile count, then per tile: int tile index, ARGB pixels of the tile row by row
+ * </pre>
+ */
+public class SequenceWriter implements Closeable {
+
+    static final int MAGIC = 0x51534551; //QSEQ
+    static final int VERSION = 1;
+    static final byte FRAME_KEY = 0;
+    static final byte FRAME_DELTA = 1;
+
+    private static final int DEFAULT_TILE_SIZE = 32;
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+    private static final float MAX_DELTA_RATIO = 0.6f;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new QuickShotThreadFactory("QuickShot-Sequence", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+    private final int keyframeInterval;
+    private final ThrottledOutputStream throttledOut;
+    private final DataOutputStream out;
+    private final int[] pixels;
+    private final long[] tileHashes;
+    private final long[] previousHashes;
+    private final int[] changedTiles;
+    private final ByteBuffer tileBytes;
+    private final IntBuffer tilePixels;
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64 * 1024);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final PendingCaptures pendingCaptures = new PendingCaptures("SequenceWriter", executor, new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+            finish();
+            return null;
+        }
+    });
+    private int frameCount;
+    private int framesSinceKeyframe;
+    private boolean closed;
+
+    /**
+     * Creates a sequence with 32x32 tiles and a keyframe every 30 frames
+     */
+    public SequenceWriter(@NonNull File file, int width, int height) throws IOException {
+        this(file, width, height, DEFAULT_TILE_SIZE, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * @param tileSize         width and height of the tiles compared between frames
+     * @param keyframeInterval the maximum number of frames between keyframes, which bounds the work to read a frame
+     */
+    public SequenceWriter(@NonNull File file, int width, int height, int tileSize, int keyframeInterval) throws IOException {
+        if (width <= 0 || height <= 0 || tileSize <= 0 || keyframeInterval <= 0) {
+            throw new IllegalArgumentException("Size, tile size and keyframe interval must be positive");
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.keyframeInterval = keyframeInterval;
+        int tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+        this.pixels = new int[width * height];
+        this.tileHashes = new long[tileCount];
+        this.previousHashes = new long[tileCount];
+        this.changedTiles = new int[tileCount];
+        this.tileBytes = ByteBuffer.allocate(tileSize * tileSize * 4);
+        this.tilePixels = tileBytes.asIntBuffer();
+
+        this.throttledOut = new ThrottledOutputStream(new FileOutputStream(file), SaveScheduler.getWriteThrottle(SaveScheduler.Priority.INTERACTIVE));
+        this.out = new DataOutputStream(throttledOut);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(tileSize);
+    }
+
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Appends a frame, which must have the size of the sequence. The bitmap is only read.
+     * <p>It's written within the write rate limit of {@link SaveScheduler.Priority#INTERACTIVE}.</p>
+     */
+    public void append(@NonNull Bitmap frame) throws IOException {
+        append(frame, SaveScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * @param priority whose write rate limit the frame is written within
+     */
+    private synchronized void append(Bitmap frame, SaveScheduler.Priority priority) throws IOException {
+        if (closed) {
+            throw new IOException("SequenceWriter is closed");
+        }
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("Frame must be " + width + "x" + height + " but was " + frame.getWidth() + "x" + frame.getHeight());
+        }
+        frame.getPixels(pixels, 0, width, 0, 0, width, height);
+        throttledOut.setThrottle(SaveScheduler.getWriteThrottle(priority));
+
+        int changedCount = 0;
+        for (int tile = 0; tile < tileHashes.length; tile++) {
+            tileHashes[tile] = hashTile(tile);
+            if (frameCount == 0 || tileHashes[tile] != previousHashes[tile]) {
+                changedTiles[changedCount++] = tile;
+            }
+        }
+
+        boolean keyframe = frameCount == 0 || framesSinceKeyframe + 1 >= keyframeInterval
+                || changedCount > tileHashes.length * MAX_DELTA_RATIO;
+        if (keyframe) {
+            for (int tile = 0; tile < tileHashes.length; tile++) {
+                changedTiles[tile] = tile;
+            }
+            changedCount = tileHashes.length;
+            framesSinceKeyframe = 0;
+        } else {
+            framesSinceKeyframe++;
+        }
+
+        writeFrame(keyframe ? FRAME_KEY : FRAME_DELTA, changedCount);
+        System.arraycopy(tileHashes, 0, previousHashes, 0, tileHashes.length);
+        frameCount++;
+    }
+
+    /**
+     * Called before a frame is captured for {@link #appendAsync(Bitmap, SaveRequest, boolean)}, so {@link #close()} waits for it
+     *
+     * @param needsMainThread see {@link PendingCaptures#begin(boolean)}
+     */
+    void beginAppend(boolean needsMainThread) {
+        pendingCaptures.begin(needsMainThread);
+    }
+
+    /**
+     * Called instead of {@link #appendAsync(Bitmap, SaveRequest, boolean)} if the frame couldn't be captured
+     */
+    void cancelAppend(boolean needsMainThread) {
+        pendingCaptures.end(needsMainThread);
+    }
+
+    /**
+     * Appends the frame on a background thread and releases it afterwards, used by {@link QuickShot#appendTo(SequenceWriter)}.
+     */
+    void appendAsync(final Bitmap frame, final SaveRequest request, final boolean needsMainThread) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    request.process(frame);
+                    append(frame, request.priority);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    success = false;
+                } finally {
+                    request.releaseBitmap(frame);
+                    pendingCaptures.end(needsMainThread);
+                }
+                final boolean appended = success;
+                if (request.listener != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (appended) {
+                                request.listener.onQuickShotSuccess(file.getAbsolutePath());
+                            } else {
+                                request.listener.onQuickShotFailed(file.getAbsolutePath());
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the file once all frames appended or being captured before were written, and blocks until then.
+     *
+     * @throws IllegalStateException on the main thread while a {@link Composition} with SurfaceViews is being
+     *                               appended, since it's finished on the main thread. Nothing is closed then, close
+     *                               again after its listener was called or from a background thread
+     */
+    @Override
+    public void close() throws IOException {
+        pendingCaptures.close();
+    }
+
+    private synchronized void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        deflater.end();
+        out.close();
+    }
+
+    private void writeFrame(byte type, int changedCount) throws IOException {
+        payload.reset();
+        deflater.reset();
+        DataOutputStream frameOut = new DataOutputStream(new DeflaterOutputStream(payload, deflater, 16 * 1024));
+        frameOut.writeInt(changedCount);
+        for (int i = 0; i < changedCount; i++) {
+            int tile = changedTiles[i];
+            int tileX = (tile % tilesX) * tileSize;
+            int tileY = (tile / tilesX) * tileSize;
+            int tileWidth = Math.min(tileSize, width - tileX);
+            int tileHeight = Math.min(tileSize, height - tileY);
+            tilePixels.clear();
+            for (int y = tileY; y < tileY + tileHeight; y++) {
+                tilePixels.put(pixels, y * width + tileX, tileWidth);
+            }
+            frameOut.writeInt(tile);
+            frameOut.write(tileBytes.array(), 0, tileWidth * tileHeight * 4);
+        }
+        frameOut.close(); //finishes the deflater, the payload stream doesn't need closing
+
+        out.writeByte(type);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    private long hashTile(int tile) {
+        int tileX = (tile % tilesX) * tileSize;
+        int tileY = (tile / tilesX) * tileSize;
+        int tileWidth = Math.min(tileSize, width - tileX);
+        int tileHeight = Math.min(tileSize, height - tileY);
+        long hash = FNV_OFFSET;
+        for (int y = tileY; y < tileY + tileHeight; y++) {
+            int offset = y * width + tileX;
+            for (int x = 0; x < tileWidth; x++) {
+                hash = (hash ^ pixels[offset + x]) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+}
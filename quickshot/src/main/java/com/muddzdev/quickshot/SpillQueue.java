@@ -0,0 +1,330 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A durable queue for captures saved with {@link QuickShot#spillToDisk()}.
+ * <p>The raw pixels of a capture are written to app-private storage together with a small header describing where
+ * and how to save it. A background drainer then encodes the spilled captures one by one into their final format and
+ * location. Spilled captures survive process death: call {@link #resume(Context)}, e.g. from Application.onCreate(),
+ * to drain whatever was left from a previous process. Listeners are only called for captures spilled by the current process.</p>
+ */
+public final class SpillQueue {
+
+    private static final String TAG = SpillQueue.class.getSimpleName();
+    private static final String DIRECTORY = "quickshot_spill";
+    private static final String EXTENSION_SPILL = ".qsraw";
+    private static final String EXTENSION_TEMP = ".tmp";
+    private static final int MAGIC = 0x51535350; //QSSP
+    private static final int VERSION = 3;
+    private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new QuickShotThreadFactory("QuickShot-SpillWriter", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final ExecutorService drainer = Executors.newSingleThreadExecutor(new QuickShotThreadFactory("QuickShot-SpillDrainer", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Map<String, SaveRequest> liveRequests = new ConcurrentHashMap<>();
+    private static final AtomicBoolean draining = new AtomicBoolean(false);
+    private static final AtomicInteger sequence = new AtomicInteger();
+    private static final AtomicLong queuedBytes = new AtomicLong();
+    private static volatile long maxSize = DEFAULT_MAX_SIZE;
+    private static volatile Context appContext;
+    private static ByteBuffer writerBuffer; //only used by the writer thread
+    private static ByteBuffer drainerBuffer; //only used by the drainer thread
+
+    private SpillQueue() {
+    }
+
+    /**
+     * @param maxBytes the maximum disk space of spilled captures, captures which don't fit are saved from memory instead.
+     *                 Default is 64 MB
+     */
+    public static void setMaxSize(long maxBytes) {
+        maxSize = maxBytes;
+    }
+
+    /**
+     * Start draining captures left over from a previous process
+     */
+    public static void resume(@NonNull Context context) {
+        init(context);
+        scheduleDrain();
+    }
+
+    /**
+     * @return the disk space currently used by spilled captures waiting to be encoded
+     */
+    public static long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Hands the bitmap to the spill writer, which recycles it after writing.
+     *
+     * @return false if the capture can't be spilled and should be saved from memory instead
+     */
+    static boolean offer(@NonNull Context context, @NonNull final Bitmap bitmap, @NonNull final SaveRequest request) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return false;
+        }
+        init(context);
+        final long size = (long) bitmap.getByteCount() + 1024;
+        if (queuedBytes.addAndGet(size) > maxSize) {
+            queuedBytes.addAndGet(-size);
+            return false;
+        }
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                String name = String.format(Locale.US, "%013d-%06d", System.currentTimeMillis(), sequence.getAndIncrement() % 1000000);
+                File file = new File(getDirectory(), name + EXTENSION_SPILL);
+                SaveRequest processed = request.processed();
+                liveRequests.put(file.getName(), processed);
+                boolean isProcessed = false;
+                try {
+                    request.process(bitmap); //spilled captures are processed already, processors can't be restored from disk
+                    isProcessed = true;
+                    write(bitmap, processed, file);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Couldn't spill the capture to disk, saving it from memory instead", e);
+                    liveRequests.remove(file.getName());
+                    queuedBytes.addAndGet(-size);
+                    SaveScheduler.submit(new BitmapSaver(appContext, bitmap, isProcessed ? processed : request));
+                    return;
+                }
+                queuedBytes.addAndGet(file.length() - size);
+                processed.releaseBitmap(bitmap);
+                scheduleDrain();
+            }
+        });
+        return true;
+    }
+
+    private static synchronized void init(Context context) {
+        if (appContext != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        File directory = getDirectory();
+        directory.mkdirs();
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(EXTENSION_TEMP)) {
+                    file.delete(); //an interrupted write
+                } else {
+                    bytes += file.length();
+                }
+            }
+        }
+        queuedBytes.addAndGet(bytes);
+    }
+
+    private static File getDirectory() {
+        return new File(appContext.getFilesDir(), DIRECTORY);
+    }
+
+    private static void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            drainer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            File[] files = listSpilledFiles();
+            if (files.length == 0) {
+                draining.set(false);
+                //A capture may have been spilled after listing the files but before the flag was cleared
+                if (listSpilledFiles().length == 0 || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                drainFile(file);
+            }
+        }
+    }
+
+    private static File[] listSpilledFiles() {
+        File[] files = getDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXTENSION_SPILL);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static void drainFile(File file) {
+        long length = file.length();
+        SaveRequest liveRequest = liveRequests.remove(file.getName());
+        try {
+            Bitmap bitmap;
+            SaveRequest request;
+            try (FileInputStream in = new FileInputStream(file)) {
+                DataInputStream header = new DataInputStream(in);
+                request = readHeader(header, liveRequest);
+                int width = header.readInt();
+                int height = header.readInt();
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                drainerBuffer = getPixelBuffer(drainerBuffer, bitmap.getByteCount());
+                FileChannel channel = in.getChannel();
+                while (drainerBuffer.hasRemaining() && channel.read(drainerBuffer) >= 0) {
+                    //keep reading until the buffer is full
+                }
+                if (drainerBuffer.hasRemaining()) {
+                    bitmap.recycle();
+                    throw new IOException("Spilled capture is truncated");
+                }
+                drainerBuffer.flip();
+                bitmap.copyPixelsFromBuffer(drainerBuffer);
+            }
+            //Encodes on the drainer thread, the listeners are still called on the main thread
+            new BitmapSaver(appContext, bitmap, request).run();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't drain spilled capture " + file.getName(), e);
+            if (liveRequest != null && liveRequest.listener != null) {
+                final SaveRequest failedRequest = liveRequest;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        failedRequest.listener.onQuickShotFailed(failedRequest.path);
+                    }
+                });
+            }
+        } finally {
+            file.delete();
+            queuedBytes.addAndGet(-length);
+        }
+    }
+
+    private static void write(Bitmap bitmap, SaveRequest request, File file) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(512);
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        writeHeader(header, request);
+        header.writeInt(bitmap.getWidth());
+        header.writeInt(bitmap.getHeight());
+        header.flush();
+
+        WriteThrottle throttle = SaveScheduler.getWriteThrottle(request.priority);
+        File temp = new File(file.getPath() + EXTENSION_TEMP);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            FileChannel channel = out.getChannel();
+            throttle.acquire(headerBytes.size());
+            channel.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+            writerBuffer = getPixelBuffer(writerBuffer, bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(writerBuffer);
+            writerBuffer.flip();
+            //the pixels are written in chunks within the write budget of the capture's priority
+            int limit = writerBuffer.limit();
+            int chunkSize = throttle.getChunkSize();
+            while (writerBuffer.position() < limit) {
+                int chunk = Math.min(chunkSize, limit - writerBuffer.position());
+                throttle.acquire(chunk);
+                writerBuffer.limit(writerBuffer.position() + chunk);
+                while (writerBuffer.hasRemaining()) {
+                    channel.write(writerBuffer);
+                }
+                writerBuffer.limit(limit);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp.getName());
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, SaveRequest request) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(request.saveInternal);
+        out.writeBoolean(request.path != null);
+        if (request.path != null) {
+            out.writeUTF(request.path);
+        }
+        out.writeUTF(request.filename);
+        out.writeInt(request.outputs.size());
+        for (Output output : request.outputs) {
+            out.writeUTF(output.suffix);
+            out.writeUTF(output.fileExtension);
+            out.writeInt(output.jpgQuality);
+            out.writeInt(output.maxWidth);
+            out.writeInt(output.maxHeight);
+            out.writeLong(output.maxBytes);
+            out.writeInt(output.paletteMode);
+        }
+    }
+
+    /**
+     * @param liveRequest the request of the current process, if any, whose listeners should be kept
+     */
+    private static SaveRequest readHeader(DataInputStream in, SaveRequest liveRequest) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a spilled capture of this version");
+        }
+        boolean saveInternal = in.readBoolean();
+        String path = in.readBoolean() ? in.readUTF() : null;
+        String filename = in.readUTF();
+        int outputCount = in.readInt();
+        List<Output> outputs = new ArrayList<>(outputCount);
+        for (int i = 0; i < outputCount; i++) {
+            outputs.add(new Output(in.readUTF(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readInt()));
+        }
+        if (liveRequest != null) {
+            return liveRequest.forCopy(); //the restored bitmap is a copy, the original was released after spilling
+        }
+        return new SaveRequest(saveInternal, path, filename, outputs, SaveScheduler.Priority.BACKGROUND, BitmapOwnership.OWNED, null, null,
+                Collections.<PixelProcessor>emptyList(), null, null);
+    }
+
+    /**
+     * @return the given buffer cleared and limited to the byte count, or a new one if it's too small
+     */
+    private static ByteBuffer getPixelBuffer(ByteBuffer buffer, int byteCount) {
+        if (buffer == null || buffer.capacity() < byteCount) {
+            buffer = ByteBuffer.allocateDirect(byteCount);
+        }
+        buffer.clear();
+        buffer.limit(byteCount);
+        return buffer;
+    }
+}
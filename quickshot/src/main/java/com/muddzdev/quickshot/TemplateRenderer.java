@@ -0,0 +1,173 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.view.View;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Renders items into images through one off-screen template View, e.g. thousands of share cards from a layout.
+ * <p>Like a RecyclerView ViewHolder the View is created once and only bound for every item. It's measured and laid
+ * out at the target size and drawn into a bitmap from the {@link BitmapPool}, which goes back to the pool once
+ * saved. The View never needs to be attached to a window.</p>
+ * <p>All methods must be called on the main thread.</p>
+ *
+ * @param <T> the item the template shows
+ */
+public class TemplateRenderer<T> {
+
+    private final Context context;
+    private final int width;
+    private final int height;
+    private final Binder<T> binder;
+    private View view;
+
+    /**
+     * @param width  of the images, the template is laid out with exactly this size
+     * @param height of the images, the template is laid out with exactly this size
+     */
+    public TemplateRenderer(@NonNull Context context, int width, int height, @NonNull Binder<T> binder) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+        this.context = context;
+        this.width = width;
+        this.height = height;
+        this.binder = binder;
+    }
+
+    /**
+     * Binds the item to the template and draws it into a pooled bitmap
+     *
+     * @return a QuickShot of the image, to set the filename and format on and save
+     */
+    @NonNull
+    @MainThread
+    public QuickShot render(@NonNull T item) {
+        View template = getView();
+        binder.bindView(template, item);
+        if (template.isLayoutRequested() || template.getWidth() != width || template.getHeight() != height) {
+            template.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+            template.layout(0, 0, width, height);
+        }
+
+        Bitmap bitmap = BitmapPool.acquire(width, height);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(bitmap);
+        template.draw(canvas);
+        canvas.setBitmap(null);
+        return QuickShot.of(bitmap, context).returnBitmapToPool();
+    }
+
+    /**
+     * Renders and saves every item. An item is only rendered once one of the earlier ones finished saving, so no more
+     * than maxInFlight images are held in memory and their bitmaps are reused from the pool.
+     *
+     * @param configurator sets the filename, path and format of every item. The result listener is used by the batch itself
+     * @param listener     called once every item was saved or failed
+     */
+    @MainThread
+    public void saveAll(@NonNull List<T> items, int maxInFlight, @NonNull Configurator<T> configurator, @Nullable BatchListener listener) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Max in flight must be positive");
+        }
+        new Batch(new ArrayList<>(items), configurator, listener).start(maxInFlight);
+    }
+
+    private View getView() {
+        if (view == null) {
+            view = binder.createView(context);
+        }
+        return view;
+    }
+
+    private class Batch implements QuickShot.QuickShotListener {
+        private final Iterator<T> items;
+        private final int itemCount;
+        private final Configurator<T> configurator;
+        private final BatchListener listener;
+        private int savedCount;
+        private int failedCount;
+
+        Batch(List<T> items, Configurator<T> configurator, BatchListener listener) {
+            this.items = items.iterator();
+            this.itemCount = items.size();
+            this.configurator = configurator;
+            this.listener = listener;
+        }
+
+        void start(int maxInFlight) {
+            if (itemCount == 0) {
+                finish();
+                return;
+            }
+            for (int i = 0; i < maxInFlight && items.hasNext(); i++) {
+                saveNext();
+            }
+        }
+
+        private void saveNext() {
+            T item = items.next();
+            QuickShot quickShot = render(item);
+            configurator.configure(quickShot, item);
+            quickShot.setResultListener(this).save();
+        }
+
+        @Override
+        public void onQuickShotSuccess(String path) {
+            savedCount++;
+            onItemDone();
+        }
+
+        @Override
+        public void onQuickShotFailed(String path) {
+            failedCount++;
+            onItemDone();
+        }
+
+        private void onItemDone() {
+            if (items.hasNext()) {
+                saveNext();
+            } else if (savedCount + failedCount == itemCount) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (listener != null) {
+                listener.onBatchSaved(savedCount, failedCount);
+            }
+        }
+    }
+
+    public interface Binder<T> {
+        /**
+         * Creates the template, called once per renderer, e.g. by inflating a layout
+         */
+        @NonNull
+        View createView(@NonNull Context context);
+
+        /**
+         * Shows the item in the template
+         */
+        void bindView(@NonNull View view, @NonNull T item);
+    }
+
+    public interface Configurator<T> {
+        void configure(@NonNull QuickShot quickShot, @NonNull T item);
+    }
+
+    public interface BatchListener {
+        void onBatchSaved(int savedCount, int failedCount);
+    }
+}
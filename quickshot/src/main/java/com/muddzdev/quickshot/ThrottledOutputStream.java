@@ -0,0 +1,69 @@
+package com.muddzdev.quickshot;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects the encoded image into chunks and writes every chunk once the {@link WriteThrottle} allows it.
+ * It replaces a BufferedOutputStream, so the underlying stream only sees a few large writes.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+
+    private WriteThrottle throttle;
+    private final byte[] chunk;
+    private int count;
+
+    ThrottledOutputStream(OutputStream out, WriteThrottle throttle) {
+        super(out);
+        this.throttle = throttle;
+        this.chunk = new byte[throttle.getChunkSize()];
+    }
+
+    /**
+     * Writes the following bytes within the budget of another throttle, for a stream shared by captures of different
+     * priorities. Bytes collected so far are still written within the budget of the current one.
+     */
+    void setThrottle(WriteThrottle throttle) throws IOException {
+        if (throttle != this.throttle) {
+            writeChunk();
+            this.throttle = throttle;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunk.length) {
+            writeChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunk.length) {
+                writeChunk();
+            }
+            int copied = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        out.flush();
+    }
+
+    private void writeChunk() throws IOException {
+        if (count > 0) {
+            throttle.acquire(count);
+            out.write(chunk, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.muddzdev.quickshot;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket pacing the bytes written by all captures of one {@link SaveScheduler.Priority}.
+ * <p>Writers reserve their bytes up front and sleep off any debt, so concurrent writers are paced in the order
+ * they asked and the rate holds even for chunks larger than the burst.</p>
+ */
+class WriteThrottle {
+
+    private static final int UNLIMITED_CHUNK_SIZE = 64 * 1024;
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private int waitingCount;
+    private long throttledNanos;
+    private long writtenBytes;
+
+    /**
+     * @param bytesPerSecond the rate to write at, or 0 for no limit
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, getBurst());
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return how many bytes to write at once, an eighth of a second of budget within sensible bounds
+     */
+    synchronized int getChunkSize() {
+        if (bytesPerSecond <= 0) {
+            return UNLIMITED_CHUNK_SIZE;
+        }
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, bytesPerSecond / 8));
+    }
+
+    /**
+     * Blocks until the bytes may be written
+     */
+    void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            writtenBytes += bytes;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            refill();
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            throttledNanos += waitNanos;
+            waitingCount++;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write budget");
+        } finally {
+            synchronized (this) {
+                waitingCount--;
+            }
+        }
+    }
+
+    synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    synchronized long getThrottledNanos() {
+        return throttledNanos;
+    }
+
+    synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(getBurst(), tokens + (double) (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * @return a quarter of a second of budget, but at least one chunk
+     */
+    private long getBurst() {
+        return Math.max(getChunkSize(), bytesPerSecond / 4);
+    }
+}
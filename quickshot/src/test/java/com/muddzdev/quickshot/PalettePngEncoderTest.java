@@ -0,0 +1,181 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Parses the PNGs written by {@link PalettePngEncoder} chunk by chunk and checks them against the source pixels.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PalettePngEncoderTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int[] COLORS = {0xFF000000, 0xFFFFFFFF, 0xFF2196F3, 0x80FF5722, 0x00000000};
+
+    @Test
+    public void testChunksAndPixelsOfExactPalette() throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = COLORS[(i / 3) % COLORS.length];
+        }
+        List<Chunk> chunks = encode(pixels, false);
+
+        Assert.assertEquals(Arrays.asList("IHDR", "PLTE", "tRNS", "IDAT", "IEND"), getTypes(chunks));
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(chunks.get(0).data));
+        Assert.assertEquals(WIDTH, header.readInt());
+        Assert.assertEquals(HEIGHT, header.readInt());
+        Assert.assertEquals(8, header.readByte()); //bit depth
+        Assert.assertEquals(3, header.readByte()); //indexed color
+
+        int[] palette = readPalette(chunks.get(1).data, chunks.get(2).data);
+        Assert.assertEquals(COLORS.length, palette.length);
+        byte[] rows = inflate(chunks);
+        Assert.assertEquals(HEIGHT * (WIDTH + 1), rows.length);
+        for (int y = 0; y < HEIGHT; y++) {
+            Assert.assertEquals("Filter type of row " + y, 0, rows[y * (WIDTH + 1)]);
+            for (int x = 0; x < WIDTH; x++) {
+                int index = rows[y * (WIDTH + 1) + 1 + x] & 0xFF;
+                Assert.assertEquals(pixels[y * WIDTH + x], palette[index]);
+            }
+        }
+    }
+
+    @Test
+    public void testOpaquePaletteHasNoTransparency() throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = COLORS[i % 3];
+        }
+        Assert.assertEquals(Arrays.asList("IHDR", "PLTE", "IDAT", "IEND"), getTypes(encode(pixels, false)));
+    }
+
+    @Test
+    public void testTooManyColorsAreOnlyWrittenWhenQuantized() throws Exception {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | (i * 0x010305);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertFalse(PalettePngEncoder.encode(createBitmap(pixels), false, out));
+        Assert.assertEquals(0, out.size());
+
+        List<Chunk> chunks = encode(pixels, true);
+        Assert.assertEquals(Arrays.asList("IHDR", "PLTE", "IDAT", "IEND"), getTypes(chunks));
+        int paletteSize = chunks.get(1).data.length / 3;
+        Assert.assertTrue("Palette of " + paletteSize + " colors", paletteSize > 0 && paletteSize <= 256);
+        byte[] rows = inflate(chunks);
+        Assert.assertEquals(HEIGHT * (WIDTH + 1), rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            if (i % (WIDTH + 1) != 0) {
+                Assert.assertTrue((rows[i] & 0xFF) < paletteSize);
+            }
+        }
+    }
+
+    /**
+     * Encodes the pixels and splits the PNG into its chunks, checking the signature and the CRC of every chunk
+     */
+    private List<Chunk> encode(int[] pixels, boolean quantize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(PalettePngEncoder.encode(createBitmap(pixels), quantize, out));
+
+        DataInputStream png = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] signature = new byte[SIGNATURE.length];
+        png.readFully(signature);
+        Assert.assertArrayEquals(SIGNATURE, signature);
+
+        List<Chunk> chunks = new ArrayList<>();
+        while (png.available() > 0) {
+            int length = png.readInt();
+            byte[] type = new byte[4];
+            png.readFully(type);
+            byte[] data = new byte[length];
+            png.readFully(data);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(data);
+            Assert.assertEquals("CRC of " + new String(type, "US-ASCII"), (int) crc.getValue(), png.readInt());
+            chunks.add(new Chunk(new String(type, "US-ASCII"), data));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the types in order, with consecutive IDAT chunks listed once
+     */
+    private static List<String> getTypes(List<Chunk> chunks) {
+        List<String> types = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            if (!(chunk.type.equals("IDAT") && types.get(types.size() - 1).equals("IDAT"))) {
+                types.add(chunk.type);
+            }
+        }
+        return types;
+    }
+
+    private static int[] readPalette(byte[] rgb, byte[] alpha) {
+        int[] palette = new int[rgb.length / 3];
+        for (int i = 0; i < palette.length; i++) {
+            int a = i < alpha.length ? alpha[i] & 0xFF : 0xFF;
+            palette[i] = (a << 24) | ((rgb[i * 3] & 0xFF) << 16) | ((rgb[i * 3 + 1] & 0xFF) << 8) | (rgb[i * 3 + 2] & 0xFF);
+        }
+        return palette;
+    }
+
+    private static byte[] inflate(List<Chunk> chunks) throws DataFormatException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        for (Chunk chunk : chunks) {
+            if (chunk.type.equals("IDAT")) {
+                deflated.write(chunk.data, 0, chunk.data.length);
+            }
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated.toByteArray());
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && inflater.needsInput()) {
+                Assert.fail("Image data ended before the deflate stream finished");
+            }
+            rows.write(buffer, 0, count);
+        }
+        inflater.end();
+        return rows.toByteArray();
+    }
+
+    private static Bitmap createBitmap(int[] pixels) {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return bitmap;
+    }
+
+    private static class Chunk {
+        final String type;
+        final byte[] data;
+
+        Chunk(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Looper;
+import android.view.SurfaceView;
+import android.view.View;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.view.View.MeasureSpec.EXACTLY;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Fires hundreds of concurrent saves through the whole pipeline and checks that every listener is called exactly
+ * once, that no bitmaps or threads are leaked and that the saves finish within the budgets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SavePipelineLoadTest {
+
+    private static final int SAVE_COUNT = 300;
+    private static final int CALLER_THREADS = 4;
+    private static final long TIMEOUT_MS = 30000;
+    private static final long SETTLE_MS = 200;
+    private static final long MAX_P95_LATENCY_MS = 5000;
+    private static final int MIN_SAVES_PER_SECOND = 20;
+    private static final String[] EXTENSIONS = {QuickShot.EXTENSION_JPG, QuickShot.EXTENSION_PNG, QuickShot.EXTENSION_NOMEDIA};
+
+    private Context context;
+    private String path;
+    private AtomicInteger callbackCount;
+
+    @Before
+    public void setup() {
+        context = ApplicationProvider.getApplicationContext();
+        path = new File(context.getFilesDir(), "load").getAbsolutePath();
+        callbackCount = new AtomicInteger();
+    }
+
+    @Test
+    public void testEveryCallbackFiresOnce() throws InterruptedException {
+        List<CountingListener> listeners = new ArrayList<>();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLER_THREADS);
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            final CountingListener listener = new CountingListener();
+            listeners.add(listener);
+            if (i % 2 == 0) {
+                saveView(i, listener);
+            } else {
+                final int index = i;
+                callers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        saveBitmap(index, createBitmap(), listener);
+                    }
+                });
+            }
+        }
+        callers.shutdown();
+        Assert.assertTrue(callers.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        awaitCallbacks(SAVE_COUNT);
+        for (CountingListener listener : listeners) {
+            Assert.assertEquals(1, listener.successCount.get() + listener.failedCount.get());
+            Assert.assertEquals(1, listener.successCount.get());
+        }
+    }
+
+    @Test
+    public void testOwnedBitmapsAreRecycled() {
+        List<Bitmap> bitmaps = new ArrayList<>();
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            Bitmap bitmap = createBitmap();
+            bitmaps.add(bitmap);
+            saveBitmap(i, bitmap, new CountingListener());
+        }
+
+        awaitCallbacks(SAVE_COUNT);
+        for (Bitmap bitmap : bitmaps) {
+            Assert.assertTrue(bitmap.isRecycled());
+        }
+    }
+
+    /**
+     * Every tenth save is a SurfaceView, which goes through the PixelCopy thread. Robolectric 4.3 has no surfaces,
+     * so PixelCopy rejects the request after the thread was started and those saves fail, which still covers
+     * starting the thread and failing without leaking it.
+     */
+    @Test
+    public void testNoThreadsLeak() {
+        SurfaceView surfaceView = new SurfaceView(context);
+        layout(surfaceView);
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            saveViewOrSurface(i, surfaceView);
+        }
+        awaitCallbacks(SAVE_COUNT);
+        int threadsAfterFirstRun = countQuickShotThreads();
+        Assert.assertEquals(1, countThreads("QuickShot-PixelCopy"));
+
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            saveViewOrSurface(i, surfaceView);
+        }
+        awaitCallbacks(SAVE_COUNT * 2);
+        int threadsAfterSecondRun = countQuickShotThreads();
+        Assert.assertTrue("Threads grew from " + threadsAfterFirstRun + " to " + threadsAfterSecondRun, threadsAfterSecondRun <= threadsAfterFirstRun);
+        Assert.assertEquals(1, countThreads("QuickShot-PixelCopy"));
+    }
+
+    @Test
+    @Config(sdk = 23)
+    public void testUnsupportedSurfaceViewFailsOnceWithoutThreads() {
+        SurfaceView surfaceView = new SurfaceView(context);
+        layout(surfaceView);
+        List<CountingListener> listeners = new ArrayList<>();
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            CountingListener listener = new CountingListener();
+            listeners.add(listener);
+            QuickShot.of(surfaceView).setPath(path).setFilename("surface_" + i).setResultListener(listener).save();
+        }
+
+        awaitCallbacks(SAVE_COUNT);
+        for (CountingListener listener : listeners) {
+            Assert.assertEquals(1, listener.failedCount.get());
+            Assert.assertEquals(0, listener.successCount.get());
+        }
+        Assert.assertEquals(0, countThreads("QuickShot-PixelCopy") + countThreads("PixelCopyHelper"));
+    }
+
+    @Test
+    public void testThroughputAndLatencyBudgets() {
+        List<CountingListener> listeners = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            CountingListener listener = new CountingListener();
+            listeners.add(listener);
+            saveView(i, listener);
+        }
+        awaitCallbacks(SAVE_COUNT);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long[] latencies = new long[listeners.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = listeners.get(i).getLatencyMs();
+        }
+        Arrays.sort(latencies);
+        long p95 = latencies[(int) (latencies.length * 0.95) - 1];
+        Assert.assertTrue("p95 latency was " + p95 + " ms", p95 <= MAX_P95_LATENCY_MS);
+        Assert.assertTrue("Saved " + SAVE_COUNT + " in " + elapsedMs + " ms", SAVE_COUNT * 1000L / Math.max(1, elapsedMs) >= MIN_SAVES_PER_SECOND);
+    }
+
+    private void saveViewOrSurface(int index, SurfaceView surfaceView) {
+        if (index % 10 == 0) {
+            QuickShot.of(surfaceView).setPath(path).setFilename("surface_" + index).setResultListener(new CountingListener()).save();
+        } else {
+            saveView(index, new CountingListener());
+        }
+    }
+
+    private void saveView(int index, CountingListener listener) {
+        View view = new View(context);
+        layout(view);
+        view.setBackgroundColor(Color.GRAY);
+        QuickShot quickShot = QuickShot.of(view).setPath(path).setFilename("view_" + index).setResultListener(listener);
+        setFormat(quickShot, index).save();
+    }
+
+    private void saveBitmap(int index, Bitmap bitmap, CountingListener listener) {
+        QuickShot quickShot = QuickShot.of(bitmap, context).setPath(path).setFilename("bitmap_" + index).setResultListener(listener);
+        setFormat(quickShot, index).save();
+    }
+
+    private QuickShot setFormat(QuickShot quickShot, int index) {
+        switch (EXTENSIONS[index % EXTENSIONS.length]) {
+            case QuickShot.EXTENSION_PNG:
+                return quickShot.toPNG();
+            case QuickShot.EXTENSION_NOMEDIA:
+                return quickShot.toNomedia();
+            default:
+                return quickShot.toJPG();
+        }
+    }
+
+    private Bitmap createBitmap() {
+        Bitmap bitmap = Bitmap.createBitmap(120, 80, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        return bitmap;
+    }
+
+    private void layout(View view) {
+        int widthMS = View.MeasureSpec.makeMeasureSpec(120, EXACTLY);
+        int heightMS = View.MeasureSpec.makeMeasureSpec(80, EXACTLY);
+        view.measure(widthMS, heightMS);
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+    }
+
+    /**
+     * Runs the main looper until the expected number of callbacks arrived, then a little longer to catch duplicates
+     */
+    private void awaitCallbacks(int expected) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (callbackCount.get() < expected && System.currentTimeMillis() < deadline) {
+            idleMainLooper(10);
+        }
+        long settled = System.currentTimeMillis() + SETTLE_MS;
+        while (System.currentTimeMillis() < settled) {
+            idleMainLooper(10);
+        }
+        Assert.assertEquals(expected, callbackCount.get());
+    }
+
+    private void idleMainLooper(long sleepMs) {
+        shadowOf(Looper.getMainLooper()).idle();
+        try {
+            Thread.sleep(sleepMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int countQuickShotThreads() {
+        return countThreads("QuickShot") + countThreads("PixelCopyHelper");
+    }
+
+    private int countThreads(String namePrefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(namePrefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private class CountingListener implements QuickShot.QuickShotListener {
+        final AtomicInteger successCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+
+        @Override
+        public void onQuickShotSuccess(String path) {
+            endNanos = System.nanoTime();
+            successCount.incrementAndGet();
+            callbackCount.incrementAndGet();
+        }
+
+        @Override
+        public void onQuickShotFailed(String path) {
+            endNanos = System.nanoTime();
+            failedCount.incrementAndGet();
+            callbackCount.incrementAndGet();
+        }
+
+        long getLatencyMs() {
+            return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.muddzdev.quickshot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fills the {@link SaveScheduler} with savers that block until released and checks what every
+ * {@link SaveScheduler.OverflowPolicy} does with the captures that don't fit.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SaveSchedulerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final long BYTES = 4 * 4 * 4;
+
+    private final List<BlockingSaver> savers = new ArrayList<>();
+    private Context context;
+    private SaveMetrics before;
+
+    @Before
+    public void setup() {
+        context = ApplicationProvider.getApplicationContext();
+        before = SaveScheduler.getMetrics();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (BlockingSaver saver : savers) {
+            saver.finish();
+        }
+        awaitIdle();
+        SaveScheduler.setLimits(Integer.MAX_VALUE, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.REJECT);
+    }
+
+    @Test
+    public void testRejectFailsTheNewCapture() throws InterruptedException {
+        SaveScheduler.setLimits(1, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.REJECT);
+        BlockingSaver running = submit("running");
+        running.awaitStarted();
+
+        Assert.assertNull(SaveScheduler.reserve(BYTES));
+        BlockingSaver rejected = submit("rejected");
+        Assert.assertTrue(rejected.failed);
+        Assert.assertFalse(running.failed);
+
+        SaveMetrics metrics = SaveScheduler.getMetrics();
+        Assert.assertEquals(1, metrics.getRejectedCount() - before.getRejectedCount());
+        Assert.assertEquals(1, metrics.getRunningCount());
+        Assert.assertEquals(BYTES, metrics.getInFlightBytes());
+    }
+
+    @Test
+    public void testDropOldestFailsThePendingCapture() throws InterruptedException {
+        SaveScheduler.setLimits(2, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.DROP_OLDEST);
+        BlockingSaver running = submit("running");
+        running.awaitStarted();
+        BlockingSaver oldest = submit("oldest");
+        Assert.assertEquals(1, SaveScheduler.getMetrics().getBackgroundPendingCount());
+
+        BlockingSaver newest = submit("newest");
+        Assert.assertTrue(oldest.failed);
+        Assert.assertFalse(newest.failed);
+        Assert.assertEquals(1, SaveScheduler.getMetrics().getDroppedCount() - before.getDroppedCount());
+
+        running.finish();
+        newest.awaitStarted();
+        Assert.assertEquals("A dropped capture never runs", 1, oldest.started.getCount());
+    }
+
+    @Test
+    public void testCoalesceReplacesThePendingCaptureOfTheSameFile() throws InterruptedException {
+        SaveScheduler.setLimits(2, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.COALESCE);
+        BlockingSaver running = submit("running");
+        running.awaitStarted();
+        BlockingSaver replaced = submit("frame");
+
+        BlockingSaver replacement = submit("frame");
+        Assert.assertTrue(replaced.failed);
+        Assert.assertFalse(replacement.failed);
+        BlockingSaver other = submit("other");
+        Assert.assertTrue(other.failed);
+
+        SaveMetrics metrics = SaveScheduler.getMetrics();
+        Assert.assertEquals(1, metrics.getCoalescedCount() - before.getCoalescedCount());
+        Assert.assertEquals(1, metrics.getRejectedCount() - before.getRejectedCount());
+        Assert.assertEquals(1, metrics.getPendingCount());
+
+        running.finish();
+        replacement.awaitStarted();
+    }
+
+    @Test
+    public void testBlockNeverRejectsACaptureWhichWaited() throws Exception {
+        SaveScheduler.setLimits(1, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.BLOCK);
+        BlockingSaver running = submit("running");
+        running.awaitStarted();
+        Assert.assertNull("The main thread must never block", SaveScheduler.reserve(BYTES));
+
+        ExecutorService producers = Executors.newFixedThreadPool(2);
+        List<Future<SaveScheduler.Reservation>> reservations = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            reservations.add(producers.submit(new Callable<SaveScheduler.Reservation>() {
+                @Override
+                public SaveScheduler.Reservation call() {
+                    return SaveScheduler.reserve(BYTES);
+                }
+            }));
+        }
+        Thread.sleep(100);
+        for (Future<SaveScheduler.Reservation> reservation : reservations) {
+            Assert.assertFalse("Producers wait while the scheduler is full", reservation.isDone());
+        }
+
+        //Both producers are woken, only one gets the room and the other keeps waiting
+        running.finish();
+        Future<SaveScheduler.Reservation> first = awaitFirst(reservations);
+        reservations.remove(first);
+        Thread.sleep(100);
+        Assert.assertFalse(reservations.get(0).isDone());
+
+        BlockingSaver firstSaver = submit("first", first.get());
+        Assert.assertFalse(firstSaver.failed);
+        firstSaver.awaitStarted();
+        firstSaver.finish();
+
+        BlockingSaver secondSaver = submit("second", reservations.get(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(secondSaver.failed);
+        secondSaver.awaitStarted();
+        Assert.assertEquals(0, SaveScheduler.getMetrics().getRejectedCount() - before.getRejectedCount());
+        producers.shutdown();
+    }
+
+    @Test
+    public void testCancelledReservationFreesTheRoom() {
+        SaveScheduler.setLimits(1, Long.MAX_VALUE, SaveScheduler.OverflowPolicy.REJECT);
+        SaveScheduler.Reservation reservation = SaveScheduler.reserve(BYTES);
+        Assert.assertNotNull(reservation);
+        Assert.assertNull(SaveScheduler.reserve(BYTES));
+
+        SaveScheduler.cancel(reservation);
+        SaveScheduler.Reservation next = SaveScheduler.reserve(BYTES);
+        Assert.assertNotNull(next);
+        SaveScheduler.cancel(next);
+    }
+
+    private BlockingSaver submit(String filename) {
+        return submit(filename, null);
+    }
+
+    private BlockingSaver submit(String filename, SaveScheduler.Reservation reservation) {
+        BlockingSaver saver = new BlockingSaver(context, filename);
+        savers.add(saver);
+        SaveScheduler.submit(saver, reservation);
+        return saver;
+    }
+
+    private static Future<SaveScheduler.Reservation> awaitFirst(List<Future<SaveScheduler.Reservation>> reservations) throws TimeoutException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            for (Future<SaveScheduler.Reservation> reservation : reservations) {
+                if (reservation.isDone()) {
+                    return reservation;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new TimeoutException("No producer got room");
+    }
+
+    private static void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            SaveMetrics metrics = SaveScheduler.getMetrics();
+            if (metrics.getPendingCount() == 0 && metrics.getRunningCount() == 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A background saver which doesn't write anything and runs until it's finished by the test
+     */
+    private static class BlockingSaver extends BitmapSaver {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean failed;
+
+        BlockingSaver(Context context, String filename) {
+            super(context, Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888), new SaveRequest(false, "test", filename,
+                    Collections.singletonList(new Output("", QuickShot.EXTENSION_PNG, 0, 0, 0)), SaveScheduler.Priority.BACKGROUND,
+                    BitmapOwnership.OWNED, null, null, Collections.<PixelProcessor>emptyList(), null, null));
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        void fail() {
+            failed = true;
+        }
+
+        void awaitStarted() throws InterruptedException {
+            Assert.assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void finish() {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.muddzdev.quickshot;
+
+import android.graphics.Bitmap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a keyframe, a delta and another keyframe with a {@link SequenceWriter} and rebuilds them with a {@link SequenceReader}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SequenceFormatTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int TILE_SIZE = 16;
+    private static final int HEADER_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private int[][] frames;
+
+    @Before
+    public void setup() throws IOException {
+        int[] first = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = 0xFF000000 | (i * 0x00010203);
+        }
+        int[] second = first.clone();
+        second[5 * WIDTH + 3] = 0xFFFF0000; //changes one tile only
+        int[] third = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < third.length; i++) {
+            third[i] = 0xFF000000 | (i * 0x00030201);
+        }
+        frames = new int[][]{first, second, third};
+
+        file = folder.newFile("sequence.qseq");
+        SequenceWriter writer = new SequenceWriter(file, WIDTH, HEIGHT, TILE_SIZE, 30);
+        for (int[] frame : frames) {
+            writer.append(createBitmap(frame));
+        }
+        writer.close();
+        Assert.assertEquals(frames.length, writer.getFrameCount());
+    }
+
+    @Test
+    public void testFrameTypes() throws IOException {
+        List<Integer> types = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            Assert.assertEquals(SequenceWriter.MAGIC, in.readInt());
+            Assert.assertEquals(SequenceWriter.VERSION, in.readInt());
+            Assert.assertEquals(WIDTH, in.readInt());
+            Assert.assertEquals(HEIGHT, in.readInt());
+            Assert.assertEquals(TILE_SIZE, in.readInt());
+            while (in.available() > 0) {
+                types.add((int) in.readByte());
+                int payloadLength = in.readInt();
+                Assert.assertEquals(payloadLength, in.skipBytes(payloadLength));
+            }
+        }
+        List<Integer> expected = new ArrayList<>();
+        expected.add((int) SequenceWriter.FRAME_KEY);
+        expected.add((int) SequenceWriter.FRAME_DELTA);
+        expected.add((int) SequenceWriter.FRAME_KEY);
+        Assert.assertEquals(expected, types);
+    }
+
+    @Test
+    public void testFramesInOrder() throws IOException {
+        try (SequenceReader reader = new SequenceReader(file)) {
+            Assert.assertEquals(frames.length, reader.getFrameCount());
+            Assert.assertEquals(WIDTH, reader.getWidth());
+            Assert.assertEquals(HEIGHT, reader.getHeight());
+            for (int i = 0; i < frames.length; i++) {
+                assertFrame(i, reader);
+            }
+        }
+    }
+
+    @Test
+    public void testFramesInRandomOrder() throws IOException {
+        try (SequenceReader reader = new SequenceReader(file)) {
+            for (int i : new int[]{1, 2, 0, 1, 1, 0, 2}) {
+                assertFrame(i, reader);
+            }
+        }
+    }
+
+    @Test
+    public void testCutOffFrameHeaderIsSkipped() throws IOException {
+        long lastFrameOffset = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipBytes(HEADER_SIZE);
+            for (int i = 0; i < frames.length - 1; i++) {
+                in.readByte();
+                int payloadLength = in.readInt();
+                in.skipBytes(payloadLength);
+                lastFrameOffset += 5 + payloadLength;
+            }
+        }
+        try (RandomAccessFile cutOff = new RandomAccessFile(file, "rw")) {
+            cutOff.setLength(lastFrameOffset + 3);
+        }
+
+        try (SequenceReader reader = new SequenceReader(file)) {
+            Assert.assertEquals(frames.length - 1, reader.getFrameCount());
+            assertFrame(1, reader);
+        }
+    }
+
+    private void assertFrame(int index, SequenceReader reader) throws IOException {
+        Bitmap frame = reader.getFrame(index);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        frame.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        Assert.assertArrayEquals("Frame " + index, frames[index], pixels);
+    }
+
+    private static Bitmap createBitmap(int[] pixels) {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return bitmap;
+    }
+}